@@ -41,6 +41,13 @@ dependencies {
     implementation("org.ow2.asm", "asm", "9.2")
     implementation("org.ow2.asm", "asm-commons", "9.2")
 
+    testImplementation("org.junit.jupiter", "junit-jupiter", "5.7.2")
+}
+
+tasks.test {
+    useJUnitPlatform()
+    // lets ExecuteUtilTest run tools in process
+    jvmArgs("-Djava.security.manager=allow")
 }
 
 gradlePlugin {
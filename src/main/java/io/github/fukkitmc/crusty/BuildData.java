@@ -0,0 +1,91 @@
+package io.github.fukkitmc.crusty;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.google.common.hash.Hasher;
+
+/**
+ * A BuildData zip as seen by one build: its parsed info, the names in its central directory and the stage outputs
+ * which are already known to be complete. The zip is only reopened when an entry has to be extracted.
+ */
+public class BuildData {
+	public final Path zip;
+	public final BuildDataInfo info;
+	public final String version;
+	private final Set<String> entries;
+	private final Map<CrustyExtension.Resource, Path> resolved = Collections.synchronizedMap(new EnumMap<>(CrustyExtension.Resource.class));
+
+	private BuildData(Path zip, BuildDataInfo info, String version, Set<String> entries) {
+		this.zip = zip;
+		this.info = info;
+		this.version = version;
+		this.entries = entries;
+	}
+
+	public static BuildData read(Path zip, String version) throws IOException {
+		try(ZipFile file = new ZipFile(zip.toFile())) {
+			Set<String> entries = new HashSet<>();
+			file.stream().map(ZipEntry::getName).forEach(entries::add);
+
+			ZipEntry info = file.getEntry("info.json");
+			if(info == null) {
+				throw new NoSuchFileException(zip + "!/info.json");
+			}
+
+			try(Reader reader = new InputStreamReader(file.getInputStream(info), StandardCharsets.UTF_8)) {
+				return new BuildData(zip, CrustyExtension.GSON.fromJson(reader, BuildDataInfo.class), version, entries);
+			}
+		}
+	}
+
+	public boolean contains(String entry) {
+		return this.entries.contains(entry);
+	}
+
+	public void copy(String entry, Path to) throws IOException {
+		if(!this.contains(entry)) {
+			throw new NoSuchFileException(this.zip + "!/" + entry);
+		}
+
+		try(ZipFile file = new ZipFile(this.zip.toFile()); InputStream input = file.getInputStream(file.getEntry(entry))) {
+			Files.copy(input, to);
+		}
+	}
+
+	public void hash(Hasher hasher, String entry) throws IOException {
+		if(!this.contains(entry)) {
+			throw new NoSuchFileException(this.zip + "!/" + entry);
+		}
+
+		try(ZipFile file = new ZipFile(this.zip.toFile()); InputStream input = file.getInputStream(file.getEntry(entry))) {
+			hasher.putBytes(input.readAllBytes());
+		}
+	}
+
+	public boolean isResolved(CrustyExtension.Resource resource) {
+		return this.resolved.containsKey(resource);
+	}
+
+	public Path getResolved(CrustyExtension.Resource resource) {
+		return this.resolved.get(resource);
+	}
+
+	public Path resolved(CrustyExtension.Resource resource, Path path) {
+		this.resolved.put(resource, path);
+		return path;
+	}
+}
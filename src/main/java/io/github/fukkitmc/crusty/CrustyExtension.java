@@ -1,37 +1,41 @@
 package io.github.fukkitmc.crusty;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.FileTime;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
 
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.gson.Gson;
+import io.github.fukkitmc.crusty.decompile.DecompileCache;
+import io.github.fukkitmc.crusty.decompile.ShardedDecompiler;
 import io.github.fukkitmc.crusty.mappings.CrustyMappings;
+import io.github.fukkitmc.crusty.remap.AccessTransformer;
+import io.github.fukkitmc.crusty.remap.JarRemapper;
+import io.github.fukkitmc.crusty.remap.MappingSet;
 import io.github.fukkitmc.crusty.util.DownloadUtil;
 import io.github.fukkitmc.crusty.util.ExecuteUtil;
+import io.github.fukkitmc.crusty.util.FingerprintIndex;
 import io.github.fukkitmc.crusty.util.MapUtil;
+import io.github.fukkitmc.crusty.util.RemoteCache;
+import io.github.fukkitmc.crusty.util.StripedFileLock;
 import io.github.fukkitmc.crusty.util.ZipUtils;
 import org.gradle.api.Project;
 import org.gradle.api.artifacts.Dependency;
-import org.gradle.api.invocation.Gradle;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
 
@@ -39,20 +43,68 @@ public class CrustyExtension {
 	public static final Gson GSON = new Gson();
 	private static final Logger ALTERNATIVE = Logging.getLogger(CrustyExtension.class);
 	private static final String JAVA_BUILD_DATA_COMMAND = "java -jar BuildData/";
+	/**
+	 * Bump when the pipeline produces different outputs from the same inputs
+	 */
+	private static final int CACHE_VERSION = 1;
+	/**
+	 * The entries of the mapped server which are minecraft's own, rather than bundled libraries
+	 */
+	private static final Predicate<String> MINECRAFT_ENTRIES = s -> s.startsWith("net/minecraft") || s.startsWith("com/mojang/math") || !s.endsWith(".class");
 	public final Project project;
 	public final Path cache;
 	public final boolean isOffline;
+	public final StripedFileLock locks;
+	/**
+	 * Content digests of the input files, so checking them costs a stat unless they changed
+	 */
+	public final FingerprintIndex fingerprints;
+	public final CrustyService service;
+	/**
+	 * Remap the server jar with the built in asm remapper in one pass, instead of running SpecialSource three times
+	 */
+	public boolean remapInProcess;
+	/**
+	 * Run the BuildData tools inside the daemon on pooled class loaders instead of forking a jvm for each run. Needs
+	 * {@code -Djava.security.manager=allow} in the daemon's jvm arguments on java 17 and later
+	 */
+	public boolean runToolsInProcess;
+	/**
+	 * How many classes the in-process remapper transforms at once
+	 */
+	public int remapThreads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * How many decompiler instances run at once, each over its own shard of the classes. Every instance holds the whole
+	 * server as its library, so this trades memory for speed
+	 */
+	public int decompileThreads = 1;
+	/**
+	 * How many ranges of a large download are fetched at once, from servers which support ranges
+	 */
+	public int downloadSegments = 1;
+	/**
+	 * Base url of an http cache shared between machines, checked for the expensive stage outputs before computing them
+	 */
+	public String remoteCacheUrl;
+	/**
+	 * Upload the stage outputs computed locally to the remote cache, usually only enabled on CI
+	 */
+	public boolean remoteCachePush;
+	private RemoteCache remoteCache;
 
 	public CrustyExtension(Project project) {
+		this(project,
+		     project != null ? project.getGradle().getGradleUserHomeDir().toPath().resolve("caches").resolve("crusty") : Paths.get("test"),
+		     project != null ? CrustyService.of(project.getGradle()) : CrustyService.detached());
+	}
+
+	CrustyExtension(Project project, Path cache, CrustyService service) {
 		this.project = project;
-		if(project != null) {
-			Gradle gradle = project.getGradle();
-			this.isOffline = gradle.getStartParameter().isOffline();
-			this.cache = gradle.getGradleUserHomeDir().toPath().resolve("caches").resolve("crusty");
-		} else {
-			this.isOffline = false;
-			this.cache = Paths.get("test");
-		}
+		this.isOffline = project != null && project.getGradle().getStartParameter().isOffline();
+		this.cache = cache;
+		this.service = service;
+		this.locks = StripedFileLock.of(this.cache.resolve("locks"));
+		this.fingerprints = FingerprintIndex.of(this.cache.resolve("fingerprints-2.bin"));
 	}
 
 	public static void main(String[] args) {
@@ -96,9 +148,13 @@ public class CrustyExtension {
 		hasher.putString(url, StandardCharsets.UTF_8);
 		String file = hasher.hash().toString();
 		Path data = this.cache.resolve("builddata").resolve(file + ".zip");
-		if(!Files.exists(data)) {
-			this.getLogger().lifecycle("Downloading BuildData " + url);
-			this.download(data, url, false);
+		try {
+			this.produce(data, () -> {
+				this.getLogger().lifecycle("Downloading BuildData " + url);
+				this.download(data, url, false);
+			});
+		} catch(IOException e) {
+			throw new RuntimeException(e);
 		}
 		return data;
 	}
@@ -112,46 +168,47 @@ public class CrustyExtension {
 
 	public void download(Path to, String url, boolean compress) {
 		try {
-			Files.createDirectories(to.getParent());
-
-			String etag = null;
-			Path etagPath = to.getParent().resolve(to.getFileName() + ".etag");
-			if(Files.exists(etagPath)) {
-				try(BufferedReader reader = Files.newBufferedReader(etagPath)) {
-					etag = reader.readLine();
-				}
-			}
-
-			long lastModifyTime;
-			if(Files.exists(to)) {
-				lastModifyTime = Files.getLastModifiedTime(to).toMillis();
-			} else {
-				lastModifyTime = -1;
-			}
-
-			DownloadUtil.Result result = DownloadUtil.read(new URL(url), etag, lastModifyTime, this.getLogger(), this.isOffline, compress);
-			if(result == null) {
-				return;
-			}
+			await(this.downloadAsync(to, url, compress));
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-			try(InputStream input = result.stream) { // Try download to the output
-				Files.copy(input, to, StandardCopyOption.REPLACE_EXISTING);
-				result.clock.close();
-			}
+	public CompletableFuture<Void> downloadAsync(Path to, String url, boolean compress) {
+		try {
+			return DownloadUtil.downloadAsync(new URL(url), to, DownloadUtil.sha1Of(url), this.getLogger(), this.isOffline, compress, this.downloadSegments);
+		} catch(MalformedURLException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
 
-			//Set the modify time to match the server's (if we know it)
-			if(result.lastModifyDate > 0) {
-				Files.setLastModifiedTime(to, FileTime.fromMillis(result.lastModifyDate));
+	/**
+	 * Produces a downloaded stage in the background, so several downloads of a pipeline run overlap
+	 */
+	CompletableFuture<Void> prefetch(Path to, String url, String name, boolean compress) {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				this.produce(to, () -> {
+					this.getLogger().lifecycle("Downloading " + name);
+					this.download(to, url, compress);
+				});
+			} catch(IOException e) {
+				throw new CompletionException(e);
 			}
+		}, DownloadUtil.EXECUTOR);
+	}
 
-			String output = result.etag;
-			if(output != null) {
-				try(BufferedWriter writer = Files.newBufferedWriter(etagPath)) {
-					writer.write(output);
-				}
+	static void await(CompletableFuture<?> future) throws IOException {
+		try {
+			future.join();
+		} catch(CompletionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
 			}
-		} catch(IOException e) {
-			throw new RuntimeException(e);
+			throw e;
 		}
 	}
 
@@ -163,11 +220,26 @@ public class CrustyExtension {
 		return this.getCrusty(buildData, Resource.JAR);
 	}
 
+	/**
+	 * The cache key of everything derived from the BuildData zip. It's computed from the zip's contents (which contain
+	 * the mappings, tools and the server/mojmap urls, which are themselves content addressed) so the same BuildData hits
+	 * the same cache regardless of where it was downloaded to.
+	 */
 	public String getBuildDataVersion(Path buildData) {
-		Hasher hasher = Hashing.sha256().newHasher();
-		hasher.putString(buildData.toAbsolutePath().toString(), StandardCharsets.UTF_8);
-		String file = hasher.hash().toString();
-		return file;
+		return this.readBuildData(buildData).version;
+	}
+
+	public BuildData readBuildData(Path buildData) {
+		return this.service.getBuildData(buildData, zip -> {
+			Hasher hasher = Hashing.sha256().newHasher();
+			hasher.putInt(CACHE_VERSION);
+			try {
+				this.fingerprints.hash(hasher, zip);
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+			return hasher.hash().toString();
+		});
 	}
 
 	public Path getDestination(Path buildData, Resource sources) {
@@ -175,9 +247,9 @@ public class CrustyExtension {
 		Path buildDataCache = cache.resolve("craftbukkit").resolve(this.getBuildDataVersion(buildData));
 		switch(sources) {
 		case SOURCE:
-			return buildDataCache.resolve("final_sources");
+			return buildDataCache.resolve("final_sources" + this.remapperSuffix());
 		case JAR:
-			return buildDataCache.resolve("final-stripped.jar");
+			return buildDataCache.resolve("final-stripped" + this.remapperSuffix() + ".jar");
 		default:
 			throw new IllegalArgumentException();
 		}
@@ -205,87 +277,68 @@ public class CrustyExtension {
 	}
 
 	public Path getCrusty(Path buildData, Resource resource) {
-		Path cache = this.cache;
-		try(FileSystem system = FileSystems.newFileSystem(buildData, (ClassLoader) null)) {
-			BuildDataInfo info;
-			try(BufferedReader reader = Files.newBufferedReader(system.getPath("info.json"))) {
-				info = GSON.fromJson(reader, BuildDataInfo.class);
-			}
-
-			Hasher hasher = Hashing.sha256().newHasher();
-			hasher.putString(buildData.toAbsolutePath().toString(), StandardCharsets.UTF_8);
-			String file = hasher.hash().toString();
+		BuildData data = this.readBuildData(buildData);
+		if(data.isResolved(resource)) {
+			return data.getResolved(resource);
+		}
+		return data.resolved(resource, this.resolveCrusty(data, resource));
+	}
 
-			Path buildDataCache = cache.resolve("craftbukkit").resolve(file);
+	private Path resolveCrusty(BuildData data, Resource resource) {
+		Path cache = this.cache;
+		try {
+			BuildDataInfo info = data.info;
+			Path buildDataCache = cache.resolve("craftbukkit").resolve(data.version);
 			Files.createDirectories(buildDataCache);
 			Path minecraftCache = cache.resolve("minecraft").resolve(info.minecraftVersion);
 
+			// the downloads don't depend on each other, or on the mappings copied meanwhile. They're waited for outside of
+			// produce, as a download blocked on a lock stripe held by this thread would never finish
 			Path vanillaJar = minecraftCache.resolve("server.jar");
-			if(missing(vanillaJar)) {
-				this.getLogger().lifecycle("Downloading Server Jar");
-				this.download(vanillaJar, info.serverUrl, false);
-				deleteMarker(vanillaJar);
-			}
+			CompletableFuture<Void> server = resource == Resource.JAR || resource == Resource.SOURCE
+			                                 ? this.prefetch(vanillaJar, info.serverUrl, "Server Jar", false)
+			                                 : CompletableFuture.completedFuture(null);
+			Path mojmap = minecraftCache.resolve("mojmap.txt");
+			CompletableFuture<Void> mappings = info.mappingsUrl != null && resource != Resource.CLASS_MAPPINGS && resource != Resource.MEMBER_MAPPINGS
+			                                   ? this.prefetch(mojmap, info.mappingsUrl, "Mojmap", true)
+			                                   : CompletableFuture.completedFuture(null);
 
-			Path mappings = system.getPath("mappings");
 			Path classMappings = buildDataCache.resolve(info.classMappings);
-			if(missing(classMappings)) {
-				Files.copy(mappings.resolve(info.classMappings), classMappings);
-				deleteMarker(classMappings);
-			}
+			this.produce(classMappings, () -> data.copy("mappings/" + info.classMappings, classMappings));
 			if(resource == Resource.CLASS_MAPPINGS) {
 				return classMappings;
 			}
 
 			Path memberMappings = buildDataCache.resolve(info.memberMappings);
-			if(missing(memberMappings)) {
-				Files.copy(mappings.resolve(info.memberMappings), memberMappings);
-				deleteMarker(memberMappings);
-			}
+			this.produce(memberMappings, () -> data.copy("mappings/" + info.memberMappings, memberMappings));
 			if(resource == Resource.MEMBER_MAPPINGS) {
 				return memberMappings;
 			}
 
 			Path accessTransformers = buildDataCache.resolve(info.accessTransforms);
-			if(missing(accessTransformers)) {
-				Files.copy(mappings.resolve(info.accessTransforms), accessTransformers);
-				deleteMarker(accessTransformers);
-			}
+			this.produce(accessTransformers, () -> data.copy("mappings/" + info.accessTransforms, accessTransformers));
 
 			String excludeName = "bukkit-" + info.minecraftVersion + ".exclude";
 			Path exclude = buildDataCache.resolve("bukkit.exclude");
-			if(missing(exclude)) {
-				Files.copy(mappings.resolve(excludeName), exclude);
-				deleteMarker(exclude);
-			}
+			this.produce(exclude, () -> data.copy("mappings/" + excludeName, exclude));
 
 			Path finalMappings;
 			if(info.mappingsUrl != null) {
-				Path mojmap = minecraftCache.resolve("mojmap.txt");
-				if(missing(mojmap)) {
-					this.getLogger().lifecycle("Downloading Mojmap");
-					this.download(mojmap, info.mappingsUrl, true);
-					deleteMarker(mojmap);
-				}
-
-				finalMappings = buildDataCache.resolve("fields.csrg");
-				if(missing(finalMappings)) {
+				Path fields = finalMappings = buildDataCache.resolve("fields.csrg");
+				await(mappings);
+				this.produce(fields, this.remoteKey(data, "fields.csrg"), false, () -> {
 					this.getLogger().lifecycle("Creating Field Mappings");
 					MapUtil mapUtil = new MapUtil();
 					mapUtil.loadBuk(classMappings);
-					mapUtil.makeFieldMaps(mojmap, finalMappings);
-					deleteMarker(finalMappings);
-				}
+					mapUtil.makeFieldMaps(mojmap, fields);
+				});
 
 				if(resource == Resource.FIELD_MAPPINGS) {
 					return finalMappings;
 				}
 			} else if(info.packageMappings != null) {
-				finalMappings = buildDataCache.resolve(info.packageMappings);
-				if(missing(finalMappings)) {
-					Files.copy(mappings.resolve(info.packageMappings), finalMappings);
-					deleteMarker(finalMappings);
-				}
+				Path packages = finalMappings = buildDataCache.resolve(info.packageMappings);
+				this.produce(packages, () -> data.copy("mappings/" + info.packageMappings, packages));
 
 				if(resource == Resource.FIELD_MAPPINGS) {
 					return null;
@@ -308,50 +361,69 @@ public class CrustyExtension {
 				info.finalMapCommand = "java -jar BuildData/bin/SpecialSource.jar --kill-lvt -i {0} --access-transformer {1} -m {2} -o {3}";
 			}
 
-			Path classMapped = buildDataCache.resolve("class-mapped-server.jar");
-			if(missing(classMapped)) {
-				this.getLogger().lifecycle("Mapping Class Names");
-				this.execute(system, buildDataCache, MessageFormat.format(info.classMapCommand, vanillaJar, classMappings, classMapped));
-				deleteMarker(classMapped);
-			}
-
-			Path memberMapped = buildDataCache.resolve("member-mapped.jar");
-			if(missing(memberMapped)) {
-				this.getLogger().lifecycle("Mapping Members");
-				this.execute(system, buildDataCache, MessageFormat.format(info.memberMapCommand, classMapped, memberMappings, memberMapped));
-				deleteMarker(memberMapped);
-			}
-
-			Path finalMapped = buildDataCache.resolve("final-mapped.jar");
-			if(missing(finalMapped)) {
-				this.getLogger().lifecycle("Mapping packages/fields");
-				this.execute(system,
-				             buildDataCache,
-				             MessageFormat.format(info.finalMapCommand, memberMapped, accessTransformers, finalMappings, finalMapped));
-				deleteMarker(finalMapped);
+			Path finalMapped = buildDataCache.resolve("final-mapped" + this.remapperSuffix() + ".jar");
+			String remapperName = this.remapInProcess ? "in-process" : "specialsource";
+			await(server);
+			if(this.remapInProcess) {
+				this.produce(finalMapped, this.remoteKey(data, "final-mapped.jar", remapperName), false, () -> {
+					this.getLogger().lifecycle("Remapping server jar");
+					List<MappingSet> stages = List.of(MappingSet.fromCommand(info.classMapCommand, classMappings, buildDataCache),
+					                                  MappingSet.read(memberMappings),
+					                                  MappingSet.read(finalMappings));
+					JarRemapper remapper = new JarRemapper(stages,
+					                                       AccessTransformer.read(accessTransformers),
+					                                       info.finalMapCommand.contains("--kill-lvt"),
+					                                       this.remapThreads);
+					remapper.remap(vanillaJar, finalMapped);
+				});
+			} else {
+				// copied before the stages running them, as those hold a lock of their own
+				this.copyTool(data, buildDataCache, info.classMapCommand);
+				this.copyTool(data, buildDataCache, info.memberMapCommand);
+				this.copyTool(data, buildDataCache, info.finalMapCommand);
+
+				Path classMapped = buildDataCache.resolve("class-mapped-server.jar");
+				this.produce(classMapped, () -> {
+					this.getLogger().lifecycle("Mapping Class Names");
+					this.execute(data, buildDataCache, MessageFormat.format(info.classMapCommand, vanillaJar, classMappings, classMapped));
+				});
+
+				Path memberMapped = buildDataCache.resolve("member-mapped.jar");
+				this.produce(memberMapped, () -> {
+					this.getLogger().lifecycle("Mapping Members");
+					this.execute(data, buildDataCache, MessageFormat.format(info.memberMapCommand, classMapped, memberMappings, memberMapped));
+				});
+
+				this.produce(finalMapped, this.remoteKey(data, "final-mapped.jar", remapperName), false, () -> {
+					this.getLogger().lifecycle("Mapping packages/fields");
+					this.execute(data,
+					             buildDataCache,
+					             MessageFormat.format(info.finalMapCommand, memberMapped, accessTransformers, finalMappings, finalMapped));
+				});
 			}
 
 			if(resource == Resource.SOURCE) {
-				Path finalClasses = buildDataCache.resolve("final_classes");
-				if(missing(finalClasses)) {
-					Files.createDirectories(finalClasses);
-					this.getLogger().lifecycle("Unzipping mapped jar");
-					ZipUtils.unzip(finalMapped, finalClasses, s -> s.startsWith("net/minecraft") || s.startsWith("com/mojang/math") || !s.endsWith(".class"));
-					deleteMarker(finalClasses);
-				}
-
-				Path decompileDir = buildDataCache.resolve("final_sources");
-				if(missing(decompileDir)) {
+				Path decompileDir = buildDataCache.resolve("final_sources" + this.remapperSuffix());
+				this.copyTool(data, buildDataCache, info.decompileCommand);
+				this.produce(decompileDir, this.remoteKey(data, "final_sources", remapperName), true, () -> {
 					Files.createDirectories(decompileDir);
 					this.getLogger().lifecycle("Decompiling Sources");
-					this.execute(system, buildDataCache, MessageFormat.format(info.decompileCommand, finalClasses, decompileDir));
-					deleteMarker(decompileDir);
-				}
+					DecompileCache decompileCache = new DecompileCache(cache.resolve("decompiled"), this.getDecompilerVersion(data), this.fingerprints.hash(finalMapped));
+					ShardedDecompiler decompiler = new ShardedDecompiler(info.decompileCommand,
+					                                                     this.decompileThreads,
+					                                                     command -> this.execute(data, buildDataCache, command),
+					                                                     decompileCache,
+					                                                     this.getLogger());
+					decompiler.decompile(finalMapped, MINECRAFT_ENTRIES, decompileDir, buildDataCache.resolve("decompile_shards"));
+					// extracted by older versions
+					delete(buildDataCache.resolve("final_classes"));
+					deleteMarker(buildDataCache.resolve("final_classes"));
+				});
 
 				return decompileDir;
 			} else {
-				Path strippedServer = buildDataCache.resolve("final-stripped.jar");
-				ZipUtils.copyWithout(finalMapped, strippedServer, s -> s.startsWith("net/minecraft") || s.startsWith("com/mojang/math") || !s.endsWith(".class"));
+				Path strippedServer = buildDataCache.resolve("final-stripped" + this.remapperSuffix() + ".jar");
+				this.produce(strippedServer, () -> ZipUtils.copyWithout(finalMapped, strippedServer, MINECRAFT_ENTRIES));
 				return strippedServer;
 			}
 		} catch(IOException e) {
@@ -359,20 +431,51 @@ public class CrustyExtension {
 		}
 	}
 
-	public void execute(FileSystem jarSystem, Path dir, String command) throws IOException {
+	/**
+	 * The remappers don't produce byte identical jars, so everything derived from the remapped jar is kept apart. The
+	 * outputs of SpecialSource keep the names they always had.
+	 */
+	private String remapperSuffix() {
+		return this.remapInProcess ? "-in-process" : "";
+	}
+
+	/**
+	 * @return identifies the decompiler of the BuildData, by its command line and the contents of its jar
+	 */
+	private String getDecompilerVersion(BuildData data) throws IOException {
+		Hasher hasher = Hashing.sha256().newHasher();
+		String command = data.info.decompileCommand;
+		hasher.putString(command, StandardCharsets.UTF_8);
 		if(command.startsWith(JAVA_BUILD_DATA_COMMAND)) {
-			this.getLogger().lifecycle("Using classloader hack for " + command);
-			int len = JAVA_BUILD_DATA_COMMAND.length(), start = command.indexOf(' ', len);
-			String jarPath = command.substring(len, start);
-
-			Path destJar = dir.resolve(jarPath);
-			if(!Files.exists(destJar)) {
-				Files.createDirectories(destJar.getParent());
-				Files.copy(jarSystem.getPath(jarPath), destJar);
-			}
+			data.hash(hasher, command.substring(JAVA_BUILD_DATA_COMMAND.length(), command.indexOf(' ', JAVA_BUILD_DATA_COMMAND.length())));
+		}
+		return hasher.hash().toString();
+	}
 
+	/**
+	 * Copies the BuildData tool a command runs out of the zip. Stages running a command must have its tool copied before
+	 * they're produced, as the copy takes the cache lock of the tool, and no lock is taken while holding another.
+	 *
+	 * @return the copied tool, or null if the command doesn't run one from the BuildData
+	 */
+	private Path copyTool(BuildData data, Path dir, String command) throws IOException {
+		if(!command.startsWith(JAVA_BUILD_DATA_COMMAND)) {
+			return null;
+		}
+
+		String jarPath = command.substring(JAVA_BUILD_DATA_COMMAND.length(), command.indexOf(' ', JAVA_BUILD_DATA_COMMAND.length()));
+		Path destJar = dir.resolve(jarPath);
+		this.produce(destJar, () -> data.copy(jarPath, destJar));
+		return destJar;
+	}
+
+	public void execute(BuildData data, Path dir, String command) throws IOException {
+		if(command.startsWith(JAVA_BUILD_DATA_COMMAND)) {
+			this.getLogger().lifecycle((this.runToolsInProcess ? "Using classloader hack for " : "Running ") + command);
+			int start = command.indexOf(' ', JAVA_BUILD_DATA_COMMAND.length());
+			Path destJar = this.copyTool(data, dir, command);
 			String[] args = command.substring(start + 1).split(" ");
-			ExecuteUtil.execute(destJar, args);
+			ExecuteUtil.execute(destJar, args, this.getLogger(), this.runToolsInProcess);
 		} else {
 			try {
 				int returnCode = new ProcessBuilder().command(command.split(" ")).redirectOutput(ProcessBuilder.Redirect.INHERIT).start().waitFor();
@@ -382,9 +485,87 @@ public class CrustyExtension {
 		}
 	}
 
+	/**
+	 * @return the key of a stage output in the remote cache, derived from the content hash of the BuildData and whatever
+	 * else changes the output
+	 */
+	public String remoteKey(BuildData data, String stage, String... options) {
+		Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putString(stage, StandardCharsets.UTF_8);
+		hasher.putString(data.version, StandardCharsets.UTF_8);
+		for(String option : options) {
+			hasher.putString(option, StandardCharsets.UTF_8);
+		}
+		return hasher.hash().toString();
+	}
+
+	/**
+	 * @return null if no remote cache is configured
+	 */
+	public synchronized RemoteCache getRemoteCache() {
+		if(this.remoteCacheUrl == null || this.isOffline) {
+			return null;
+		}
+
+		if(this.remoteCache == null) {
+			this.remoteCache = new RemoteCache(this.remoteCacheUrl, this.remoteCachePush, this.getLogger());
+		}
+		return this.remoteCache;
+	}
+
+	public void produce(Path output, Stage stage) throws IOException {
+		this.produce(output, null, false, stage);
+	}
+
+	/**
+	 * Runs the stage if its output is missing. Projects of the build asking for the same output share one run of the
+	 * stage, and the output's cache lock is held while checking and producing it, so concurrent builds wait for one of
+	 * them to produce it, rather than deleting each other's work. A marker left behind while holding the lock can only
+	 * come from a build that died midway, so its output is discarded and redone.
+	 *
+	 * @param remoteKey the key of the output in the remote cache, null if it shouldn't be shared
+	 * @param directory whether the output is a directory
+	 */
+	public void produce(Path output, String remoteKey, boolean directory, Stage stage) throws IOException {
+		if(isComplete(output)) {
+			return;
+		}
+
+		this.service.produce(output, () -> {
+			try(StripedFileLock.Handle lock = this.locks.lock(output.toAbsolutePath().normalize().toString(), this.getLogger())) {
+				if(Files.exists(marker(output))) {
+					this.getLogger().lifecycle("Discarding incomplete " + output + " left by an interrupted build");
+				}
+
+				if(missing(output)) {
+					RemoteCache remote = remoteKey == null ? null : this.getRemoteCache();
+					if(remote == null || !remote.load(remoteKey, output, directory)) {
+						stage.run();
+						if(remote != null) {
+							remote.store(remoteKey, output, directory);
+						}
+					}
+					deleteMarker(output);
+				}
+			}
+		});
+	}
+
+	public interface Stage {
+		void run() throws IOException;
+	}
+
+	public static boolean isComplete(Path path) {
+		return Files.exists(path) && !Files.exists(marker(path));
+	}
+
+	private static Path marker(Path path) {
+		return path.getParent().resolve(path.getFileName() + ".marker");
+	}
+
 	public static boolean missing(Path path) throws IOException {
 		Path parent = path.getParent();
-		Path marker = parent.resolve(path.getFileName() + ".marker");
+		Path marker = marker(path);
 		if(Files.exists(marker)) {
 			delete(path);
 			return true;
@@ -398,7 +579,6 @@ public class CrustyExtension {
 	}
 
 	public static void deleteMarker(Path path) throws IOException {
-		Path marker = path.getParent().resolve(path.getFileName() + ".marker");
-		delete(marker);
+		delete(marker(path));
 	}
 }
@@ -0,0 +1,125 @@
+package io.github.fukkitmc.crusty;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import io.github.fukkitmc.crusty.mappings.AbstractSelfResolvingDependency;
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.artifacts.DependencyArtifact;
+import org.gradle.api.artifacts.ExternalModuleDependency;
+import org.gradle.api.invocation.Gradle;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Build scoped state shared by the crusty extensions of every project of the build:
+ * <ul>
+ *     <li>opened BuildData zips, which don't change during a build, so they're keyed by path alone and repeat lookups
+ *     don't touch the disk</li>
+ *     <li>resolved external dependencies, keyed by the project and their coordinates</li>
+ *     <li>the stages being produced right now, so projects asking for the same output at once wait for one of them
+ *     rather than each taking the cache lock in turn</li>
+ * </ul>
+ */
+public abstract class CrustyService implements BuildService<BuildServiceParameters.None> {
+	private final Map<Path, BuildData> buildData = new ConcurrentHashMap<>();
+	private final Map<String, Set<File>> resolutions = new ConcurrentHashMap<>();
+	private final Map<Path, CompletableFuture<Void>> stages = new ConcurrentHashMap<>();
+
+	public static CrustyService of(Gradle gradle) {
+		return gradle.getSharedServices().registerIfAbsent("crusty", CrustyService.class, spec -> {}).get();
+	}
+
+	/**
+	 * @return a service of its own, for extensions without a project
+	 */
+	public static CrustyService detached() {
+		return new CrustyService() {
+			@Override
+			public BuildServiceParameters.None getParameters() {
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * @param version computes the cache key of a BuildData zip the first time it's seen
+	 */
+	public BuildData getBuildData(Path zip, Function<Path, String> version) {
+		return this.buildData.computeIfAbsent(zip.toAbsolutePath().normalize(), path -> {
+			try {
+				return BuildData.read(path, version.apply(path));
+			} catch(IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * Resolves the dependency in the given project, external modules are only resolved once per project and build. The
+	 * same coordinates may resolve to other files in another project, which has repositories of its own.
+	 */
+	public Set<File> resolve(Project project, Dependency dependency) {
+		String key = key(dependency);
+		if(key == null) {
+			return resolved(project, dependency);
+		}
+		return this.resolutions.computeIfAbsent(project.getPath() + '|' + key, $ -> resolved(project, dependency));
+	}
+
+	private static Set<File> resolved(Project project, Dependency dependency) {
+		Set<File> files = new LinkedHashSet<>();
+		AbstractSelfResolvingDependency.resolve(project, List.of(dependency)).forEach(files::add);
+		return Collections.unmodifiableSet(files);
+	}
+
+	/**
+	 * @return the coordinates of an external module, or null if the dependency isn't one
+	 */
+	private static String key(Dependency dependency) {
+		if(!(dependency instanceof ExternalModuleDependency module)) {
+			return null;
+		}
+
+		StringBuilder key = new StringBuilder().append(module.getGroup()).append(':').append(module.getName()).append(':').append(module.getVersion());
+		for(DependencyArtifact artifact : module.getArtifacts()) {
+			key.append(':').append(artifact.getClassifier()).append('@').append(artifact.getExtension());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Runs the stage, unless another project of the build is producing the same output already, in which case this
+	 * waits for it and fails if it failed
+	 */
+	public void produce(Path output, CrustyExtension.Stage stage) throws IOException {
+		Path key = output.toAbsolutePath().normalize();
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		CompletableFuture<Void> running = this.stages.putIfAbsent(key, future);
+		if(running != null) {
+			CrustyExtension.await(running);
+			return;
+		}
+
+		try {
+			stage.run();
+			future.complete(null);
+		} catch(IOException | RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.stages.remove(key, future);
+		}
+	}
+}
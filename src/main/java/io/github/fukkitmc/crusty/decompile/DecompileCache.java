@@ -0,0 +1,74 @@
+package io.github.fukkitmc.crusty.decompile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Persistent decompiled sources of single top level classes, keyed by the bytecode of the class and its inner classes,
+ * by the decompiler and by the library jar it sees the other classes through, so classes already decompiled against the
+ * same jar aren't decompiled again. The library is part of the key as the source of a class depends on the types it
+ * uses, which fernflower reads from the library.
+ */
+public class DecompileCache {
+	private final Path directory;
+	private final String decompiler;
+	private final String library;
+
+	/**
+	 * @param decompiler identifies the decompiler and its options
+	 * @param library the content hash of the library jar passed to the decompiler
+	 */
+	public DecompileCache(Path directory, String decompiler, String library) {
+		this.directory = directory;
+		this.decompiler = decompiler;
+		this.library = library;
+	}
+
+	/**
+	 * @param names the class file names of the outer class and its inner classes, parallel to {@code contents}
+	 */
+	public String key(List<String> names, List<byte[]> contents) {
+		Hasher hasher = Hashing.sha256().newHasher();
+		hasher.putString(this.decompiler, StandardCharsets.UTF_8);
+		hasher.putString(this.library, StandardCharsets.UTF_8);
+		for(int i = 0; i < names.size(); i++) {
+			hasher.putString(names.get(i), StandardCharsets.UTF_8);
+			hasher.putInt(contents.get(i).length);
+			hasher.putBytes(contents.get(i));
+		}
+		return hasher.hash().toString();
+	}
+
+	/**
+	 * @return true if the source was cached and copied to {@code source}
+	 */
+	public boolean restore(String key, Path source) throws IOException {
+		Path cached = this.path(key);
+		if(!Files.exists(cached)) {
+			return false;
+		}
+
+		Files.createDirectories(source.getParent());
+		Files.copy(cached, source, StandardCopyOption.REPLACE_EXISTING);
+		return true;
+	}
+
+	public void store(String key, Path source) throws IOException {
+		Path cached = this.path(key);
+		Files.createDirectories(cached.getParent());
+		Path temp = Files.createTempFile(cached.getParent(), key, ".tmp");
+		Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Path path(String key) {
+		return this.directory.resolve(key.substring(0, 2)).resolve(key + ".java");
+	}
+}
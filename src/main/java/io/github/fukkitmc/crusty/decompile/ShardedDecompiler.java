@@ -0,0 +1,218 @@
+package io.github.fukkitmc.crusty.decompile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import io.github.fukkitmc.crusty.CrustyExtension;
+import io.github.fukkitmc.crusty.util.ZipUtils;
+import org.gradle.api.logging.Logger;
+
+/**
+ * Runs a fernflower style decompile command ({@code {0}} sources, {@code {1}} destination) straight from a jar, over
+ * several shards at once. Each shard is a small jar of whole top level classes (inner classes always go with their
+ * outer class), and the whole input jar is passed as a library ({@code -e=}) so each shard still sees every type. No
+ * class tree is ever extracted. With a {@link DecompileCache}, only the classes which aren't cached yet are decompiled.
+ */
+public class ShardedDecompiler {
+	private final String command;
+	private final int shards;
+	private final Runner runner;
+	private final DecompileCache cache;
+	private final Logger logger;
+
+	public interface Runner {
+		void run(String command) throws IOException;
+	}
+
+	/**
+	 * @param cache may be null
+	 */
+	public ShardedDecompiler(String command, int shards, Runner runner, DecompileCache cache, Logger logger) {
+		this.command = command;
+		this.shards = shards;
+		this.runner = runner;
+		this.cache = cache;
+		this.logger = logger;
+	}
+
+	/**
+	 * @param filter the entries of the jar to decompile (or copy, for resources)
+	 * @param work scratch directory for the shards, deleted afterwards
+	 */
+	public void decompile(Path jar, Predicate<String> filter, Path output, Path work) throws IOException {
+		List<Group> pending = new ArrayList<>();
+		try(ZipFile zip = new ZipFile(jar.toFile())) {
+			for(Group group : this.group(zip, filter)) {
+				if(!group.isClass) {
+					Path resource = output.resolve(group.name);
+					Files.createDirectories(resource.getParent());
+					try(InputStream input = zip.getInputStream(group.entries.get(0))) {
+						Files.copy(input, resource);
+					}
+					continue;
+				}
+
+				for(ZipEntry entry : group.entries) {
+					try(InputStream input = zip.getInputStream(entry)) {
+						group.contents.add(input.readAllBytes());
+					}
+				}
+
+				if(this.cache != null) {
+					group.key = this.cache.key(group.entries.stream().map(ZipEntry::getName).collect(Collectors.toList()), group.contents);
+					if(this.cache.restore(group.key, output.resolve(group.name + ".java"))) {
+						group.contents = null;
+						continue;
+					}
+				}
+				pending.add(group);
+			}
+		}
+
+		if(this.cache != null && this.logger != null) {
+			this.logger.lifecycle("Decompiling {} classes, the rest are cached", pending.size());
+		}
+
+		if(!pending.isEmpty()) {
+			this.run(jar, output, work, pending);
+		}
+
+		if(this.cache != null) {
+			for(Group group : pending) {
+				Path source = output.resolve(group.name + ".java");
+				if(Files.exists(source)) {
+					this.cache.store(group.key, source);
+				}
+			}
+		}
+	}
+
+	private void run(Path jar, Path output, Path work, List<Group> groups) throws IOException {
+		List<Path> shards = this.split(work, groups);
+		ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for(Path shard : shards) {
+				// one token per argument, split again by the command runner
+				String sources = "-e=" + jar + " " + shard;
+				Path destination = work.resolve(shard.getFileName() + "-out");
+				futures.add(executor.submit(() -> {
+					Files.createDirectories(destination);
+					this.runner.run(MessageFormat.format(this.command, sources, destination));
+					// sources of an archive are written to an archive of the same name
+					ZipUtils.unzip(destination.resolve(shard.getFileName()), output, name -> true);
+					return null;
+				}));
+			}
+
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+			CrustyExtension.delete(work);
+		}
+	}
+
+	/**
+	 * Groups class entries by their top level class, resources are a group of their own
+	 */
+	private List<Group> group(ZipFile zip, Predicate<String> filter) {
+		Map<String, Group> groups = new TreeMap<>();
+		zip.stream().filter(entry -> !entry.isDirectory() && filter.test(entry.getName())).sorted(Comparator.comparing(ZipEntry::getName)).forEach(entry -> {
+			String name = entry.getName();
+			boolean isClass = name.endsWith(".class");
+			if(isClass) {
+				int inner = name.indexOf('$', name.lastIndexOf('/') + 1);
+				name = inner == -1 ? name.substring(0, name.length() - 6) : name.substring(0, inner);
+			}
+			Group group = groups.computeIfAbsent(name, $ -> new Group($, isClass));
+			group.entries.add(entry);
+			group.size += entry.getSize();
+		});
+		return new ArrayList<>(groups.values());
+	}
+
+	/**
+	 * Writes the groups into shard jars, balancing the shards by class file size
+	 */
+	private List<Path> split(Path work, List<Group> groups) throws IOException {
+		CrustyExtension.delete(work);
+		Files.createDirectories(work);
+		PriorityQueue<Shard> queue = new PriorityQueue<>(Comparator.comparingLong(shard -> shard.size));
+		for(int i = 0; i < Math.max(1, Math.min(this.shards, groups.size())); i++) {
+			queue.add(new Shard());
+		}
+
+		List<Group> sorted = new ArrayList<>(groups);
+		sorted.sort(Comparator.comparingLong(group -> -group.size));
+		for(Group group : sorted) {
+			Shard shard = queue.poll();
+			shard.groups.add(group);
+			shard.size += group.size;
+			queue.add(shard);
+		}
+
+		List<Path> jars = new ArrayList<>();
+		for(Shard shard : queue) {
+			Path jar = work.resolve("shard-" + jars.size() + ".jar");
+			try(OutputStream stream = Files.newOutputStream(jar); ZipOutputStream zos = new ZipOutputStream(stream)) {
+				for(Group group : shard.groups) {
+					for(int i = 0; i < group.entries.size(); i++) {
+						zos.putNextEntry(new ZipEntry(group.entries.get(i).getName()));
+						zos.write(group.contents.get(i));
+						zos.closeEntry();
+					}
+					group.contents = null;
+				}
+			}
+			jars.add(jar);
+		}
+		return jars;
+	}
+
+	static class Group {
+		final String name;
+		final boolean isClass;
+		final List<ZipEntry> entries = new ArrayList<>();
+		List<byte[]> contents = new ArrayList<>();
+		long size;
+		String key;
+
+		Group(String name, boolean isClass) {
+			this.name = name;
+			this.isClass = isClass;
+		}
+	}
+
+	static class Shard {
+		final List<Group> groups = new ArrayList<>();
+		long size;
+	}
+}
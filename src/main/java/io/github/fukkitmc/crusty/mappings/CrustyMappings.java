@@ -12,31 +12,39 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import javax.lang.model.SourceVersion;
-
 import com.google.common.collect.Iterables;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import io.github.fukkitmc.crusty.CrustyExtension;
 import io.github.fukkitmc.crusty.util.CachedFile;
+import io.github.fukkitmc.crusty.util.SymbolTable;
 import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.logging.Logger;
 import org.objectweb.asm.commons.Remapper;
 
 import net.fabricmc.mappingio.MappedElementKind;
 import net.fabricmc.mappingio.format.Tiny2Reader;
 import net.fabricmc.mappingio.format.Tiny2Writer;
-import net.fabricmc.mappingio.tree.MappingTree;
 import net.fabricmc.mappingio.tree.MemoryMappingTree;
 
 public class CrustyMappings extends AbstractSelfResolvingDependency {
+	/**
+	 * How many of the fields missing from intermediary are listed at the default log level
+	 */
+	private static final int MISSING_SHOWN = 20;
 	public final Dependency intermediary;
 	public final Iterable<File> classes;
 	public final Iterable<File> members;
 	public final CrustyExtension extension;
 	public final CrustyFile file;
+	private Iterable<File> intermediaryFiles;
+	private String key;
 
 	public CrustyMappings(CrustyExtension plugin, String version, Dependency intermediary, Iterable<File> classes, Iterable<File> members) {
 		super(plugin.project, "org.spigotmc", "crusty-mappigs", version);
@@ -44,7 +52,7 @@ public class CrustyMappings extends AbstractSelfResolvingDependency {
 		this.intermediary = intermediary;
 		this.classes = classes;
 		this.members = members;
-		this.file = new CrustyFile(plugin.project.getBuildDir().toPath().resolve("crusty.jar")); // todo maybe make this project cached cus lazy
+		this.file = new CrustyFile(() -> plugin.cache.resolve("mappings").resolve(this.key()).resolve("crusty.jar"));
 	}
 
 	public static String deobf(Map<String, String> classes, String name) {
@@ -60,23 +68,66 @@ public class CrustyMappings extends AbstractSelfResolvingDependency {
 		return name;
 	}
 
-	public static String hash(Iterable<File> files) {
+	/**
+	 * Splits the text into line aligned {@code [start, end)} ranges, enough of them to keep every core busy
+	 */
+	static List<int[]> chunks(String content) {
+		int size = Math.max(64 * 1024, content.length() / (Runtime.getRuntime().availableProcessors() * 4));
+		List<int[]> chunks = new ArrayList<>();
+		for(int start = 0; start < content.length(); ) {
+			int end = content.indexOf('\n', Math.min(content.length(), start + size));
+			end = end == -1 ? content.length() : end + 1;
+			chunks.add(new int[] {start, end});
+			start = end;
+		}
+		return chunks;
+	}
+
+	public String hash(Iterable<File> files) {
 		Hasher hasher = Hashing.sha256().newHasher();
 		try {
-			hash(hasher, files);
+			this.hash(hasher, files);
 		} catch(IOException e) {
 			throw new RuntimeException(e);
 		}
 		return hasher.hash().toString();
 	}
 
-	public static void hash(Hasher hasher, Iterable<File> files) throws IOException {
+	public void hash(Hasher hasher, Iterable<File> files) throws IOException {
 		for(File file : files) {
-			hasher.putUnencodedChars(file.getAbsolutePath());
-			hasher.putLong(file.lastModified());
+			this.extension.fingerprints.hash(hasher, file.toPath());
 		}
 	}
 
+	/**
+	 * Loads the intermediary tree from its snapshot in the global cache, only parsing the tiny file if this intermediary
+	 * was never seen before
+	 */
+	private IntermediarySnapshot snapshot(Path jar) throws IOException {
+		Path snapshot = this.extension.cache.resolve("intermediary").resolve(IntermediarySnapshot.fileName(this.extension.fingerprints.hash(jar)));
+		this.extension.produce(snapshot, () -> {
+			MemoryMappingTree tree = new MemoryMappingTree();
+			try(FileSystem system = FileSystems.newFileSystem(jar)) {
+				try(BufferedReader reader = Files.newBufferedReader(system.getPath("mappings/mappings.tiny"))) {
+					Tiny2Reader.read(reader, tree);
+				}
+			}
+			IntermediarySnapshot.write(tree, snapshot);
+		});
+		return IntermediarySnapshot.open(snapshot);
+	}
+
+	/**
+	 * @return the content hash of the inputs, under which the generated mappings are shared by every project and build
+	 */
+	private synchronized String key() {
+		if(this.key == null) {
+			this.intermediaryFiles = this.extension.service.resolve(this.project, this.intermediary);
+			this.key = this.hash(Iterables.concat(this.classes, this.members, this.intermediaryFiles));
+		}
+		return this.key;
+	}
+
 	@Override
 	protected Path resolvePaths() {
 		return this.file.getPath();
@@ -88,128 +139,146 @@ public class CrustyMappings extends AbstractSelfResolvingDependency {
 	}
 
 	public class CrustyFile extends CachedFile<String> {
-		public CrustyFile(Path file) {
+		public CrustyFile(Supplier<Path> file) {
 			super(file, String.class);
 		}
 
 		@Override
-		protected String writeIfOutdated(Path path, String currentData) {
-			Iterable<File> intermediaryFiles = CrustyMappings.this.resolve(List.of(CrustyMappings.this.intermediary));
-			String hash = hash(Iterables.concat(CrustyMappings.this.classes, CrustyMappings.this.members, intermediaryFiles));
-			if(hash.equals(currentData)) {
+		protected String writeIfOutdated(Path path, String currentData) throws IOException {
+			String hash = CrustyMappings.this.key();
+			if(hash.equals(currentData) && CrustyExtension.isComplete(path)) {
 				return null;
 			}
 
-			try {
-				MemoryMappingTree intermediary = new MemoryMappingTree();
-				try(FileSystem system = FileSystems.newFileSystem(Iterables.getOnlyElement(intermediaryFiles).toPath())) {
-					try(BufferedReader reader = Files.newBufferedReader(system.getPath("mappings/mappings.tiny"))) {
-						Tiny2Reader.read(reader, intermediary);
-					}
-				}
+			// the snapshot takes a lock of its own, which mustn't be waited for while holding the one of crusty.jar
+			IntermediarySnapshot intermediary = snapshot(Iterables.getOnlyElement(CrustyMappings.this.intermediaryFiles).toPath());
+			CrustyMappings.this.extension.produce(path, "crusty.jar-" + hash, false, () -> this.write(path, intermediary));
+			return hash;
+		}
 
-				record MemberEntry(String name, String desc) {}
-				record FromToEntry(MemberEntry entry, String destName, boolean isMethod) {}
-				record ClassEntry(String destName, List<FromToEntry> entries) {}
-
-				Map<String, ClassEntry> mappings = new HashMap<>();
-				Map<String, String> reversedClasses = new HashMap<>(); // named -> obf
-				for(File cls : CrustyMappings.this.classes) {
-					try(BufferedReader reader = Files.newBufferedReader(cls.toPath())) {
-						String ln;
-						while((ln = reader.readLine()) != null) {
-							if(ln.isEmpty() || ln.charAt(0) == '#') {
-								continue;
-							}
-
-							String[] split = ln.split(" ");
-							mappings.put(split[0], new ClassEntry(split[1], new ArrayList<>()));
-							reversedClasses.put(split[1], split[0]);
+		private void write(Path path, IntermediarySnapshot intermediary) throws IOException {
+			SymbolTable symbols = new SymbolTable();
+			MemberTable mappings = new MemberTable(); // obf -> named, with the members in obf names
+			Map<String, String> reversedClasses = new HashMap<>(); // named -> obf
+			for(File cls : CrustyMappings.this.classes) {
+				try(BufferedReader reader = Files.newBufferedReader(cls.toPath())) {
+					String ln;
+					while((ln = reader.readLine()) != null) {
+						if(ln.isEmpty() || ln.charAt(0) == '#') {
+							continue;
 						}
+
+						String[] split = ln.split(" ");
+						mappings.put(symbols.intern(split[0]), symbols.intern(split[1]));
+						reversedClasses.put(split[1], split[0]);
 					}
 				}
+			}
+
+			Remapper remapper = new Remapper() {
+				@Override
+				public String map(String internalName) {
+					return reversedClasses.getOrDefault(internalName, internalName);
+				}
+			};
+
+			record Member(String owner, String name, String desc, String dest, boolean isMethod) {}
+
+			// chunks of the member files are parsed in parallel, each into a list of its own, and merged in file order
+			Map<String, String> descriptors = new ConcurrentHashMap<>();
+			List<String> missing = new ArrayList<>();
+			for(File member : CrustyMappings.this.members) {
+				String content = Files.readString(member.toPath());
+				List<List<Member>> chunks = chunks(content).parallelStream().map(chunk -> {
+					List<Member> parsed = new ArrayList<>();
+					for(int start = chunk[0], end; start < chunk[1]; start = end + 1) {
+						end = content.indexOf('\n', start);
+						if(end == -1 || end > chunk[1]) {
+							end = chunk[1];
+						}
 
-				Remapper remapper = new Remapper() {
-					@Override
-					public String map(String internalName) {
-						return reversedClasses.getOrDefault(internalName, internalName);
+						String ln = content.substring(start, end > start && content.charAt(end - 1) == '\r' ? end - 1 : end);
+						if(ln.isEmpty() || ln.charAt(0) == '#') {
+							continue;
+						}
+
+						String[] split = ln.split(" ");
+						if(split.length == 3) { // fields
+							String obfName = deobf(reversedClasses, split[0]);
+							// a null descriptor marks a field missing from intermediary, reported once all files are parsed
+							parsed.add(new Member(obfName, split[1], intermediary.getFieldDesc(obfName, split[1]), split[2], false));
+						} else if(split.length == 4) { // methods
+							String desc = descriptors.computeIfAbsent(split[2], remapper::mapMethodDesc);
+							parsed.add(new Member(reversedClasses.getOrDefault(split[0], split[0]), split[1], desc, split[3], true));
+						}
 					}
-				};
-
-				for(File member : CrustyMappings.this.members) {
-					try(BufferedReader reader = Files.newBufferedReader(member.toPath())) {
-						String ln;
-						while((ln = reader.readLine()) != null) {
-							if(ln.isEmpty() || ln.charAt(0) == '#') {
-								continue;
-							}
-
-							String[] split = ln.split(" ");
-							if(split.length == 3) { // fields
-								String obfName = deobf(reversedClasses, split[0]);
-								ClassEntry entry = mappings.computeIfAbsent(obfName, $ -> new ClassEntry($, new ArrayList<>()));
-								MappingTree.FieldMapping mapping = intermediary.getField(obfName, split[1], null);
-								if(mapping == null) {
-									String newName = split[1].replace("_", "");
-									if(SourceVersion.isKeyword(newName)) {
-										mapping = intermediary.getField(obfName, newName, null);
-									}
-								}
-								if(mapping == null) {
-									System.out.println("Unable to find descriptor for (" + obfName + "/" + split[0] + ").(" + split[1] + "/" + split[2] + ")");
-								}
-								String fieldDesc = mapping.getSrcDesc();
-								entry.entries.add(new FromToEntry(new MemberEntry(split[1], fieldDesc), split[2], false));
-							} else if(split.length == 4) { // methods
-								ClassEntry entry = mappings.computeIfAbsent(reversedClasses.getOrDefault(split[0], split[0]),
-								                                            $ -> new ClassEntry($, new ArrayList<>()));
-
-								entry.entries.add(new FromToEntry(new MemberEntry(split[1], remapper.mapMethodDesc(split[2])), split[3], true));
-							}
+					return parsed;
+				}).collect(Collectors.toList());
+
+				for(List<Member> chunk : chunks) {
+					for(Member parsed : chunk) {
+						if(parsed.desc == null) {
+							missing.add(parsed.owner + "." + parsed.name + " -> " + parsed.dest);
+							continue;
 						}
+
+						int owner = symbols.intern(parsed.owner);
+						int entry = mappings.getOrAdd(owner, owner);
+						mappings.addMember(entry,
+						                   symbols.intern(parsed.name),
+						                   symbols.intern(parsed.desc),
+						                   symbols.intern(parsed.dest),
+						                   parsed.isMethod ? MemberTable.METHOD : 0);
 					}
 				}
+			}
+
+			if(!missing.isEmpty()) {
+				Logger logger = CrustyMappings.this.extension.getLogger();
+				logger.warn("Unable to find the descriptors of {} fields in intermediary, they are left out:\n\t{}{}",
+				            missing.size(),
+				            String.join("\n\t", missing.subList(0, Math.min(missing.size(), MISSING_SHOWN))),
+				            missing.size() > MISSING_SHOWN ? "\n\t... (the rest with --info)" : "");
+				for(String field : missing.subList(Math.min(missing.size(), MISSING_SHOWN), missing.size())) {
+					logger.info("Unable to find the descriptor of {}", field);
+				}
+			}
 
-				try(ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(path))) {
-					zos.putNextEntry(new ZipEntry("mappings/mappings.tiny"));
-					OutputStreamWriter writer = new OutputStreamWriter(zos);
-					Tiny2Writer tinyWriter = new Tiny2Writer(writer, false);
-					tinyWriter.visitHeader();
+			try(ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(path))) {
+				zos.putNextEntry(new ZipEntry("mappings/mappings.tiny"));
+				OutputStreamWriter writer = new OutputStreamWriter(zos);
+				Tiny2Writer tinyWriter = new Tiny2Writer(writer, false);
+				tinyWriter.visitHeader();
+				tinyWriter.visitContent();
+				tinyWriter.visitNamespaces("intermediary", List.of("named"));
+				for(int entry = 0; entry < mappings.size(); entry++) {
+					String obfClassName = symbols.get(mappings.getName(entry));
 					tinyWriter.visitContent();
-					tinyWriter.visitNamespaces("intermediary", List.of("named"));
-					for(Map.Entry<String, ClassEntry> entry : mappings.entrySet()) {
-						String obfClassName = entry.getKey();
-						ClassEntry value = entry.getValue();
-						tinyWriter.visitContent();
-						tinyWriter.visitClass(intermediary.mapClassName(obfClassName, 0));
-						tinyWriter.visitDstName(MappedElementKind.CLASS, 0, value.destName());
-						tinyWriter.visitElementContent(MappedElementKind.CLASS);
-
-						for(FromToEntry fromToEntry : value.entries) {
-							if(fromToEntry.isMethod) {
-								MappingTree.MethodMapping method = intermediary.getMethod(obfClassName, fromToEntry.entry.name, fromToEntry.entry.desc);
-								if(method == null) continue;
-								tinyWriter.visitMethod(method.getSrcName(), method.getSrcDesc());
-								tinyWriter.visitDstName(MappedElementKind.METHOD, 0, fromToEntry.destName);
-								tinyWriter.visitElementContent(MappedElementKind.METHOD);
-							} else {
-								MappingTree.FieldMapping field = intermediary.getField(obfClassName, fromToEntry.entry.name, fromToEntry.entry.desc);
-								if(field == null) continue;
-								tinyWriter.visitField(field.getSrcName(), field.getSrcDesc());
-								tinyWriter.visitDstName(MappedElementKind.FIELD, 0, fromToEntry.destName);
-								tinyWriter.visitElementContent(MappedElementKind.FIELD);
-							}
+					tinyWriter.visitClass(intermediary.mapClassName(obfClassName));
+					tinyWriter.visitDstName(MappedElementKind.CLASS, 0, symbols.get(mappings.getDest(entry)));
+					tinyWriter.visitElementContent(MappedElementKind.CLASS);
+
+					int[] members = mappings.getMembers(entry);
+					for(int i = 0, offset = 0; i < mappings.getMemberCount(entry); i++, offset += MemberTable.STRIDE) {
+						String name = symbols.get(members[offset + MemberTable.NAME]), desc = symbols.get(members[offset + MemberTable.DESC]);
+						String destName = symbols.get(members[offset + MemberTable.DEST]);
+						if((members[offset + MemberTable.FLAGS] & MemberTable.METHOD) != 0) {
+							if(!intermediary.hasMethod(obfClassName, name, desc)) continue;
+							tinyWriter.visitMethod(name, desc);
+							tinyWriter.visitDstName(MappedElementKind.METHOD, 0, destName);
+							tinyWriter.visitElementContent(MappedElementKind.METHOD);
+						} else {
+							if(!intermediary.hasField(obfClassName, name, desc)) continue;
+							tinyWriter.visitField(name, desc);
+							tinyWriter.visitDstName(MappedElementKind.FIELD, 0, destName);
+							tinyWriter.visitElementContent(MappedElementKind.FIELD);
 						}
 					}
-					tinyWriter.visitEnd();
-					writer.flush();
-					zos.closeEntry();
 				}
-			} catch(IOException e) {
-				throw new RuntimeException(e);
+				tinyWriter.visitEnd();
+				writer.flush();
+				zos.closeEntry();
 			}
-
-			return hash;
 		}
 	}
 }
@@ -0,0 +1,339 @@
+package io.github.fukkitmc.crusty.mappings;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.SourceVersion;
+
+import net.fabricmc.mappingio.tree.MappingTree;
+
+/**
+ * A binary copy of the parts of the intermediary tree crusty looks up: class names and the source names and descriptors
+ * of their members. The file is read as is and nothing is decoded up front, strings are only turned into {@link String}s
+ * when a lookup compares or returns them, so loading it costs next to nothing compared to parsing the tiny file.
+ * <p>
+ * Members are joined through two hash indexes stored in the file, one keyed by (owner, name, descriptor) and one of the
+ * fields keyed by (owner, name). The latter also holds fields named after java keywords under the name spigot gives them,
+ * with a trailing {@code _}, so every lookup is a fixed number of probes.
+ * <p>
+ * Lookups only ever use absolute reads of the buffer, so a snapshot can be shared between threads.
+ */
+public class IntermediarySnapshot {
+	private static final int MAGIC = 0x43524953; // CRIS
+	private static final int VERSION = 2;
+	private static final int HEADER = 7 * Integer.BYTES;
+	private static final int CLASS_STRIDE = 2, SRC = 0, DST = 1;
+	private static final int MEMBER_STRIDE = 4, OWNER = 0, NAME = 1, DESC = 2, KIND = 3;
+	private static final int FIELD = 0, METHOD = 1;
+
+	private final ByteBuffer buffer;
+	private final int hashes, offsets, strings, classOf, classes, members, memberTable, fieldTable, bytes;
+	private final int stringMask, memberMask;
+	private final String[] decoded;
+
+	private IntermediarySnapshot(ByteBuffer buffer) throws IOException {
+		if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not an intermediary snapshot");
+		}
+
+		this.buffer = buffer;
+		int stringCount = buffer.getInt(8), stringCapacity = buffer.getInt(12);
+		int classCount = buffer.getInt(16), memberCount = buffer.getInt(20), memberCapacity = buffer.getInt(24);
+		this.stringMask = stringCapacity - 1;
+		this.memberMask = memberCapacity - 1;
+		this.hashes = HEADER;
+		this.offsets = this.hashes + stringCount * Integer.BYTES;
+		this.strings = this.offsets + (stringCount + 1) * Integer.BYTES;
+		this.classOf = this.strings + stringCapacity * Integer.BYTES;
+		this.classes = this.classOf + stringCount * Integer.BYTES;
+		this.members = this.classes + classCount * CLASS_STRIDE * Integer.BYTES;
+		this.memberTable = this.members + memberCount * MEMBER_STRIDE * Integer.BYTES;
+		this.fieldTable = this.memberTable + memberCapacity * Integer.BYTES;
+		this.bytes = this.fieldTable + memberCapacity * 2 * Integer.BYTES;
+		this.decoded = new String[stringCount];
+	}
+
+	/**
+	 * Reads the snapshot onto the heap. A mapping would keep the file open until the buffer is collected, which on
+	 * windows blocks replacing or deleting it for the rest of the daemon's life.
+	 */
+	public static IntermediarySnapshot open(Path file) throws IOException {
+		return new IntermediarySnapshot(ByteBuffer.wrap(Files.readAllBytes(file)));
+	}
+
+	/**
+	 * @return the name of the snapshot of an intermediary with the given content hash, changing along with the format
+	 */
+	public static String fileName(String hash) {
+		return hash + "-" + VERSION + ".bin";
+	}
+
+	/**
+	 * Same as {@link MappingTree#mapClassName(String, int)} for the first destination namespace
+	 */
+	public String mapClassName(String name) {
+		int cls = this.classIndex(name);
+		if(cls == -1) {
+			return name;
+		}
+
+		int dst = this.classInt(cls, DST);
+		return dst == -1 ? name : this.string(dst);
+	}
+
+	/**
+	 * Looks a field up by name alone, the way spigot names it: a field named after a keyword is also found by the name
+	 * with a {@code _} appended
+	 *
+	 * @return the descriptor of the field, or null if the class has no such field
+	 */
+	public String getFieldDesc(String owner, String name) {
+		int cls = this.classIndex(owner), nameId = this.find(name);
+		if(cls == -1 || nameId == -1) {
+			return null;
+		}
+
+		for(int slot = mix(cls, nameId) & this.memberMask; ; slot = (slot + 1) & this.memberMask) {
+			int position = this.fieldTable + slot * 2 * Integer.BYTES;
+			int member = this.buffer.getInt(position) - 1;
+			if(member == -1) {
+				return null;
+			} else if(this.buffer.getInt(position + Integer.BYTES) == nameId && this.memberInt(member, OWNER) == cls) {
+				return this.string(this.memberInt(member, DESC));
+			}
+		}
+	}
+
+	public boolean hasField(String owner, String name, String desc) {
+		return this.hasMember(FIELD, owner, name, desc);
+	}
+
+	public boolean hasMethod(String owner, String name, String desc) {
+		return this.hasMember(METHOD, owner, name, desc);
+	}
+
+	private boolean hasMember(int kind, String owner, String name, String desc) {
+		int cls = this.classIndex(owner), nameId = this.find(name), descId = this.find(desc);
+		if(cls == -1 || nameId == -1 || descId == -1) {
+			return false;
+		}
+
+		for(int slot = mix(kind, cls, nameId, descId) & this.memberMask; ; slot = (slot + 1) & this.memberMask) {
+			int member = this.buffer.getInt(this.memberTable + slot * Integer.BYTES) - 1;
+			if(member == -1) {
+				return false;
+			} else if(this.memberInt(member, KIND) == kind
+			          && this.memberInt(member, OWNER) == cls
+			          && this.memberInt(member, NAME) == nameId
+			          && this.memberInt(member, DESC) == descId) {
+				return true;
+			}
+		}
+	}
+
+	private int classIndex(String name) {
+		int id = this.find(name);
+		return id == -1 ? -1 : this.buffer.getInt(this.classOf + id * Integer.BYTES);
+	}
+
+	private int classInt(int cls, int field) {
+		return this.buffer.getInt(this.classes + (cls * CLASS_STRIDE + field) * Integer.BYTES);
+	}
+
+	private int memberInt(int member, int field) {
+		return this.buffer.getInt(this.members + (member * MEMBER_STRIDE + field) * Integer.BYTES);
+	}
+
+	/**
+	 * @return the id of the string, or -1 if it's not in the snapshot
+	 */
+	private int find(String string) {
+		int hash = string.hashCode();
+		for(int slot = mix(hash) & this.stringMask; ; slot = (slot + 1) & this.stringMask) {
+			int id = this.buffer.getInt(this.strings + slot * Integer.BYTES) - 1;
+			if(id == -1) {
+				return -1;
+			} else if(this.buffer.getInt(this.hashes + id * Integer.BYTES) == hash && this.string(id).equals(string)) {
+				return id;
+			}
+		}
+	}
+
+	private String string(int id) {
+		// racing threads decode the same string, either copy is fine
+		String string = this.decoded[id];
+		if(string == null) {
+			int start = this.buffer.getInt(this.offsets + id * Integer.BYTES), end = this.buffer.getInt(this.offsets + (id + 1) * Integer.BYTES);
+			byte[] utf = new byte[end - start];
+			this.buffer.get(this.bytes + start, utf);
+			this.decoded[id] = string = new String(utf, StandardCharsets.UTF_8);
+		}
+		return string;
+	}
+
+	private static int mix(int a, int b) {
+		return mix(mix(a) + b);
+	}
+
+	private static int mix(int a, int b, int c, int d) {
+		return mix(mix(mix(mix(a) + b) + c) + d);
+	}
+
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Writes the snapshot of the tree's source names and first destination namespace to {@code file}, atomically
+	 */
+	public static void write(MappingTree tree, Path file) throws IOException {
+		Map<String, Integer> strings = new LinkedHashMap<>();
+		List<int[]> classes = new ArrayList<>();
+		List<int[]> members = new ArrayList<>();
+		for(MappingTree.ClassMapping cls : tree.getClasses()) {
+			String dst = cls.getDstName(0);
+			int index = classes.size();
+			classes.add(new int[] {intern(strings, cls.getSrcName()), dst == null ? -1 : intern(strings, dst)});
+			for(MappingTree.FieldMapping field : cls.getFields()) {
+				members.add(new int[] {index, intern(strings, field.getSrcName()), intern(strings, field.getSrcDesc()), FIELD});
+			}
+			for(MappingTree.MethodMapping method : cls.getMethods()) {
+				members.add(new int[] {index, intern(strings, method.getSrcName()), intern(strings, method.getSrcDesc()), METHOD});
+			}
+		}
+
+		// keyword fields are found under spigot's name too, unless a field of that name exists already
+		List<String> names = new ArrayList<>(strings.keySet());
+		List<int[]> aliases = new ArrayList<>();
+		for(int i = 0; i < members.size(); i++) {
+			int[] member = members.get(i);
+			String name = names.get(member[NAME]);
+			if(member[KIND] == FIELD && SourceVersion.isKeyword(name)) {
+				aliases.add(new int[] {i, intern(strings, name + "_")});
+			}
+		}
+
+		int stringCapacity = capacity(strings.size());
+		int[] stringTable = new int[stringCapacity];
+		int[] classOf = new int[strings.size()];
+		List<byte[]> encoded = new ArrayList<>(strings.size());
+		for(String string : strings.keySet()) {
+			int id = encoded.size();
+			encoded.add(string.getBytes(StandardCharsets.UTF_8));
+			insert(stringTable, 1, mix(string.hashCode()), id + 1);
+			classOf[id] = -1;
+		}
+		for(int i = 0; i < classes.size(); i++) {
+			classOf[classes.get(i)[SRC]] = i;
+		}
+
+		int memberCapacity = capacity(members.size() + aliases.size());
+		int[] memberTable = new int[memberCapacity];
+		int[] fieldTable = new int[memberCapacity * 2];
+		for(int i = 0; i < members.size(); i++) {
+			int[] member = members.get(i);
+			insert(memberTable, 1, mix(member[KIND], member[OWNER], member[NAME], member[DESC]), i + 1);
+		}
+		// the first field of a name wins, like in MemoryMappingTree
+		for(int i = 0; i < members.size(); i++) {
+			int[] member = members.get(i);
+			if(member[KIND] == FIELD && !contains(fieldTable, members, member[OWNER], member[NAME])) {
+				insert(fieldTable, 2, mix(member[OWNER], member[NAME]), i + 1, member[NAME]);
+			}
+		}
+		for(int[] alias : aliases) {
+			int owner = members.get(alias[0])[OWNER];
+			if(!contains(fieldTable, members, owner, alias[1])) {
+				insert(fieldTable, 2, mix(owner, alias[1]), alias[0] + 1, alias[1]);
+			}
+		}
+
+		Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				output.writeInt(MAGIC);
+				output.writeInt(VERSION);
+				output.writeInt(strings.size());
+				output.writeInt(stringCapacity);
+				output.writeInt(classes.size());
+				output.writeInt(members.size());
+				output.writeInt(memberCapacity);
+				for(String string : strings.keySet()) {
+					output.writeInt(string.hashCode());
+				}
+				int offset = 0;
+				for(byte[] utf : encoded) {
+					output.writeInt(offset);
+					offset += utf.length;
+				}
+				output.writeInt(offset);
+				writeInts(output, stringTable);
+				writeInts(output, classOf);
+				for(int[] cls : classes) {
+					writeInts(output, cls);
+				}
+				for(int[] member : members) {
+					writeInts(output, member);
+				}
+				writeInts(output, memberTable);
+				writeInts(output, fieldTable);
+				for(byte[] utf : encoded) {
+					output.write(utf);
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static int intern(Map<String, Integer> strings, String string) {
+		return strings.computeIfAbsent(string, $ -> strings.size());
+	}
+
+	/**
+	 * @return a power of two, at most half full with {@code size} entries
+	 */
+	private static int capacity(int size) {
+		return Integer.highestOneBit(Math.max(size, 1) * 2) * 2;
+	}
+
+	/**
+	 * Inserts {@code value} in the first free slot at or after the hash, a slot is free while its first int is 0
+	 */
+	private static void insert(int[] table, int stride, int hash, int... value) {
+		int mask = table.length / stride - 1;
+		int slot = hash & mask;
+		while(table[slot * stride] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		System.arraycopy(value, 0, table, slot * stride, value.length);
+	}
+
+	private static boolean contains(int[] fieldTable, List<int[]> members, int owner, int name) {
+		int mask = fieldTable.length / 2 - 1;
+		for(int slot = mix(owner, name) & mask; fieldTable[slot * 2] != 0; slot = (slot + 1) & mask) {
+			if(fieldTable[slot * 2 + 1] == name && members.get(fieldTable[slot * 2] - 1)[OWNER] == owner) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void writeInts(DataOutputStream output, int[] values) throws IOException {
+		for(int value : values) {
+			output.writeInt(value);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package io.github.fukkitmc.crusty.mappings;
+
+import java.util.Arrays;
+
+import io.github.fukkitmc.crusty.util.IntIntMap;
+import io.github.fukkitmc.crusty.util.SymbolTable;
+
+/**
+ * The classes of a mapping and their members, as {@link SymbolTable} ids. Each class has a single packed int array of
+ * its members, {@value #STRIDE} ints per member.
+ */
+public class MemberTable {
+	public static final int NAME = 0, DESC = 1, DEST = 2, FLAGS = 3, STRIDE = 4;
+	public static final int METHOD = 1;
+	private final IntIntMap index = new IntIntMap();
+	private int[] names = new int[256];
+	private int[] dests = new int[256];
+	private int[][] members = new int[256][];
+	private int[] counts = new int[256];
+	private int size;
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return the index of the class, -1 if it has no entry
+	 */
+	public int find(int name) {
+		return this.index.get(name);
+	}
+
+	/**
+	 * Sets the destination name of the class, adding it if needed
+	 *
+	 * @return the index of the class
+	 */
+	public int put(int name, int dest) {
+		int index = this.getOrAdd(name, dest);
+		this.dests[index] = dest;
+		return index;
+	}
+
+	/**
+	 * @param dest the destination name of the class if it has to be added
+	 * @return the index of the class
+	 */
+	public int getOrAdd(int name, int dest) {
+		int index = this.index.get(name);
+		if(index != -1) {
+			return index;
+		}
+
+		if(this.size == this.names.length) {
+			int length = this.size * 2;
+			this.names = Arrays.copyOf(this.names, length);
+			this.dests = Arrays.copyOf(this.dests, length);
+			this.members = Arrays.copyOf(this.members, length);
+			this.counts = Arrays.copyOf(this.counts, length);
+		}
+
+		index = this.size++;
+		this.names[index] = name;
+		this.dests[index] = dest;
+		this.index.put(name, index);
+		return index;
+	}
+
+	public void addMember(int index, int name, int desc, int dest, int flags) {
+		int[] members = this.members[index];
+		int offset = this.counts[index] * STRIDE;
+		if(members == null) {
+			members = this.members[index] = new int[4 * STRIDE];
+		} else if(offset == members.length) {
+			members = this.members[index] = Arrays.copyOf(members, members.length * 2);
+		}
+
+		members[offset + NAME] = name;
+		members[offset + DESC] = desc;
+		members[offset + DEST] = dest;
+		members[offset + FLAGS] = flags;
+		this.counts[index]++;
+	}
+
+	public int getName(int index) {
+		return this.names[index];
+	}
+
+	public int getDest(int index) {
+		return this.dests[index];
+	}
+
+	public int getMemberCount(int index) {
+		return this.counts[index];
+	}
+
+	/**
+	 * @return the packed members of the class, read {@code members[member * STRIDE + field]}
+	 */
+	public int[] getMembers(int index) {
+		int[] members = this.members[index];
+		return members == null ? new int[0] : members;
+	}
+}
@@ -0,0 +1,142 @@
+package io.github.fukkitmc.crusty.remap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.Remapper;
+
+/**
+ * SpecialSource style access transformer, lines are {@code <access>[+-f] <class>[ <field>|<method><desc>]} where the
+ * member may be {@code *} for all fields or {@code *()} for all methods
+ */
+public class AccessTransformer {
+	private static final int VISIBILITY = Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED | Opcodes.ACC_PRIVATE;
+	private final Map<String, Change> changes = new HashMap<>();
+
+	record Change(int visibility, int add, int remove) {
+		int apply(int access) {
+			if(rank(this.visibility) > rank(access & VISIBILITY)) {
+				access = (access & ~VISIBILITY) | this.visibility;
+			}
+			return (access | this.add) & ~this.remove;
+		}
+
+		static int rank(int visibility) {
+			return switch(visibility) {
+				case Opcodes.ACC_PRIVATE -> 0;
+				case Opcodes.ACC_PROTECTED -> 2;
+				case Opcodes.ACC_PUBLIC -> 3;
+				default -> 1;
+			};
+		}
+	}
+
+	public static AccessTransformer read(Path file) throws IOException {
+		AccessTransformer transformer = new AccessTransformer();
+		try(BufferedReader reader = Files.newBufferedReader(file)) {
+			String ln;
+			while((ln = reader.readLine()) != null) {
+				int comment = ln.indexOf('#');
+				if(comment != -1) {
+					ln = ln.substring(0, comment);
+				}
+				ln = ln.trim();
+				if(ln.isEmpty()) {
+					continue;
+				}
+
+				String[] split = ln.split("\\s+");
+				String key = split.length > 2 ? split[1] + ' ' + split[2] : split[1];
+				transformer.changes.put(key, parse(split[0]));
+			}
+		}
+		return transformer;
+	}
+
+	private static Change parse(String access) {
+		int modifiers = access.length();
+		for(int i = 0; i < access.length(); i++) {
+			char c = access.charAt(i);
+			if(c == '+' || c == '-') {
+				modifiers = i;
+				break;
+			}
+		}
+
+		int visibility = switch(access.substring(0, modifiers)) {
+			case "public" -> Opcodes.ACC_PUBLIC;
+			case "protected" -> Opcodes.ACC_PROTECTED;
+			case "private" -> Opcodes.ACC_PRIVATE;
+			default -> 0;
+		};
+
+		int add = 0, remove = 0;
+		for(String flag : access.substring(modifiers).split("(?=[+-])")) {
+			if(flag.isEmpty()) {
+				continue;
+			}
+
+			int bit = switch(flag.substring(1)) {
+				case "f", "final" -> Opcodes.ACC_FINAL;
+				case "synthetic" -> Opcodes.ACC_SYNTHETIC;
+				default -> throw new IllegalArgumentException("Unknown access flag " + flag + " in " + access);
+			};
+			if(flag.charAt(0) == '+') {
+				add |= bit;
+			} else {
+				remove |= bit;
+			}
+		}
+		return new Change(visibility, add, remove);
+	}
+
+	/**
+	 * @param names maps the visited names into the namespace the transformer was written against
+	 */
+	public ClassVisitor visitor(ClassVisitor delegate, Remapper names) {
+		return new ClassVisitor(Opcodes.ASM9, delegate) {
+			String name, owner;
+
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				this.name = name;
+				this.owner = names.map(name);
+				super.visit(version, AccessTransformer.this.apply(access, this.owner), name, signature, superName, interfaces);
+			}
+
+			@Override
+			public void visitInnerClass(String name, String outerName, String innerName, int access) {
+				super.visitInnerClass(name, outerName, innerName, AccessTransformer.this.apply(access, names.map(name)));
+			}
+
+			@Override
+			public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+				String mapped = names.mapFieldName(this.name, name, descriptor);
+				access = AccessTransformer.this.apply(access, this.owner + " *");
+				access = AccessTransformer.this.apply(access, this.owner + ' ' + mapped);
+				return super.visitField(access, name, descriptor, signature, value);
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+				String mapped = names.mapMethodName(this.name, name, descriptor) + names.mapMethodDesc(descriptor);
+				access = AccessTransformer.this.apply(access, this.owner + " *()");
+				access = AccessTransformer.this.apply(access, this.owner + ' ' + mapped);
+				return super.visitMethod(access, name, descriptor, signature, exceptions);
+			}
+		};
+	}
+
+	private int apply(int access, String key) {
+		Change change = this.changes.get(key);
+		return change == null ? access : change.apply(access);
+	}
+}
@@ -0,0 +1,98 @@
+package io.github.fukkitmc.crusty.remap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Super types and bridge methods of the classes in the input jar, in the input namespace. Classes may be added
+ * concurrently, but all of them must be added before the first lookup.
+ */
+public class ClassHierarchy {
+	private final Map<String, String[]> parents = new ConcurrentHashMap<>();
+	private final Map<String, String> bridges = new ConcurrentHashMap<>(); // owner name desc -> target name desc
+	private final Map<String, List<String>> ancestors = new ConcurrentHashMap<>();
+
+	public void add(byte[] bytes) {
+		new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM9) {
+			String name;
+
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				this.name = name;
+				String[] types = new String[interfaces.length + (superName == null ? 0 : 1)];
+				System.arraycopy(interfaces, 0, types, types.length - interfaces.length, interfaces.length);
+				if(superName != null) {
+					types[0] = superName;
+				}
+				ClassHierarchy.this.parents.put(name, types);
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, String methodName, String descriptor, String signature, String[] exceptions) {
+				if((access & Opcodes.ACC_BRIDGE) == 0) {
+					return null;
+				}
+
+				String owner = this.name;
+				return new MethodVisitor(Opcodes.ASM9) {
+					String target;
+
+					@Override
+					public void visitMethodInsn(int opcode, String insnOwner, String insnName, String insnDesc, boolean isInterface) {
+						if(insnOwner.equals(owner) && insnName.equals(methodName)) {
+							this.target = insnName + ' ' + insnDesc;
+						}
+					}
+
+					@Override
+					public void visitEnd() {
+						if(this.target != null) {
+							ClassHierarchy.this.bridges.put(owner + ' ' + methodName + ' ' + descriptor, this.target);
+						}
+					}
+				};
+			}
+		}, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+	}
+
+	/**
+	 * @return the class itself followed by all of its known super types
+	 */
+	public List<String> getAncestors(String name) {
+		List<String> ancestors = this.ancestors.get(name);
+		if(ancestors == null) {
+			Set<String> visited = new LinkedHashSet<>();
+			this.collect(name, visited);
+			ancestors = new ArrayList<>(visited);
+			this.ancestors.put(name, ancestors);
+		}
+		return ancestors;
+	}
+
+	/**
+	 * @return "name desc" of the method a synthetic bridge delegates to, or null
+	 */
+	public String getBridgeTarget(String owner, String name, String desc) {
+		return this.bridges.get(owner + ' ' + name + ' ' + desc);
+	}
+
+	private void collect(String name, Set<String> visited) {
+		if(visited.add(name)) {
+			String[] types = this.parents.get(name);
+			if(types != null) {
+				for(String type : types) {
+					this.collect(type, visited);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package io.github.fukkitmc.crusty.remap;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.objectweb.asm.commons.Remapper;
+
+/**
+ * Applies several {@link MappingSet}s one after another, as if each was its own pass over the jar. Member lookups walk
+ * the hierarchy of the input jar, and synthetic bridges follow the name of the method they delegate to. Safe to share
+ * between threads.
+ */
+public class FusedRemapper extends Remapper {
+	private final List<MappingSet> stages;
+	private final ClassHierarchy hierarchy;
+	private final Remapper[] views;
+	private final Map<String, String> classCache = new ConcurrentHashMap<>();
+	private final Map<String, String> memberCache = new ConcurrentHashMap<>();
+
+	public FusedRemapper(List<MappingSet> stages, ClassHierarchy hierarchy) {
+		this.stages = stages;
+		this.hierarchy = hierarchy;
+		this.views = new Remapper[stages.size() + 1];
+		for(int i = 0; i < this.views.length; i++) {
+			int depth = i;
+			this.views[i] = new Remapper() {
+				@Override
+				public String map(String internalName) {
+					return FusedRemapper.this.mapClass(internalName, depth);
+				}
+
+				@Override
+				public String mapMethodName(String owner, String name, String descriptor) {
+					return FusedRemapper.this.mapMethod(owner, name, descriptor, depth);
+				}
+
+				@Override
+				public String mapFieldName(String owner, String name, String descriptor) {
+					return FusedRemapper.this.mapField(owner, name, depth);
+				}
+			};
+		}
+	}
+
+	/**
+	 * @return a remapper that only applies the first {@code depth} stages
+	 */
+	public Remapper view(int depth) {
+		return this.views[depth];
+	}
+
+	@Override
+	public String map(String internalName) {
+		return this.classCache.computeIfAbsent(internalName, name -> this.mapClass(name, this.stages.size()));
+	}
+
+	@Override
+	public String mapMethodName(String owner, String name, String descriptor) {
+		if(name.charAt(0) == '<') {
+			return name;
+		}
+
+		String key = owner + ' ' + name + ' ' + descriptor;
+		String mapped = this.memberCache.get(key);
+		if(mapped == null) {
+			mapped = this.mapMethod(owner, name, descriptor, this.stages.size());
+			if(mapped.equals(name)) {
+				String target = this.hierarchy.getBridgeTarget(owner, name, descriptor);
+				if(target != null) {
+					int split = target.indexOf(' ');
+					mapped = this.mapMethod(owner, target.substring(0, split), target.substring(split + 1), this.stages.size());
+				}
+			}
+			this.memberCache.put(key, mapped);
+		}
+		return mapped;
+	}
+
+	@Override
+	public String mapFieldName(String owner, String name, String descriptor) {
+		String key = owner + ' ' + name;
+		String mapped = this.memberCache.get(key);
+		if(mapped == null) {
+			mapped = this.mapField(owner, name, this.stages.size());
+			this.memberCache.put(key, mapped);
+		}
+		return mapped;
+	}
+
+	public String mapClass(String name, int depth) {
+		for(int i = 0; i < depth; i++) {
+			name = this.stages.get(i).mapClass(name);
+		}
+		return name;
+	}
+
+	public String mapMethod(String owner, String name, String desc, int depth) {
+		List<String> ancestors = this.hierarchy.getAncestors(owner);
+		for(int i = 0; i < depth; i++) {
+			MappingSet stage = this.stages.get(i);
+			if(!stage.hasMembers()) {
+				continue;
+			}
+
+			String stageDesc = this.views[i].mapMethodDesc(desc);
+			for(String ancestor : ancestors) {
+				String mapped = stage.getMethod(this.mapClass(ancestor, i), name, stageDesc);
+				if(mapped != null) {
+					name = mapped;
+					break;
+				}
+			}
+		}
+		return name;
+	}
+
+	public String mapField(String owner, String name, int depth) {
+		List<String> ancestors = this.hierarchy.getAncestors(owner);
+		for(int i = 0; i < depth; i++) {
+			MappingSet stage = this.stages.get(i);
+			if(!stage.hasMembers()) {
+				continue;
+			}
+
+			for(String ancestor : ancestors) {
+				String mapped = stage.getField(this.mapClass(ancestor, i), name);
+				if(mapped != null) {
+					name = mapped;
+					break;
+				}
+			}
+		}
+		return name;
+	}
+}
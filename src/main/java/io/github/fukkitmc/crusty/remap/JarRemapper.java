@@ -0,0 +1,135 @@
+package io.github.fukkitmc.crusty.remap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.ClassRemapper;
+
+/**
+ * Remaps a jar through every mapping stage, the access transformer and lvt stripping in a single read-transform-write
+ * pass, instead of one SpecialSource run (and one intermediate jar) per stage. Entries are read and transformed in
+ * parallel, the output keeps the entry order of the input.
+ */
+public class JarRemapper {
+	private final List<MappingSet> stages;
+	private final AccessTransformer accessTransformer;
+	private final boolean killLvt;
+	private final int parallelism;
+
+	/**
+	 * @param accessTransformer applied against the names before the last stage, may be null
+	 * @param parallelism the number of classes transformed at once
+	 */
+	public JarRemapper(List<MappingSet> stages, AccessTransformer accessTransformer, boolean killLvt, int parallelism) {
+		this.stages = stages;
+		this.accessTransformer = accessTransformer;
+		this.killLvt = killLvt;
+		this.parallelism = parallelism;
+	}
+
+	public void remap(Path input, Path output) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+		try(ZipFile zip = new ZipFile(input.toFile())) {
+			List<? extends ZipEntry> entries = zip.stream().filter(entry -> !entry.isDirectory()).collect(Collectors.toList());
+			byte[][] contents = new byte[entries.size()][];
+			ClassHierarchy hierarchy = new ClassHierarchy();
+			this.forEach(pool, entries.size(), i -> {
+				ZipEntry entry = entries.get(i);
+				try(InputStream stream = zip.getInputStream(entry)) {
+					contents[i] = stream.readAllBytes();
+				}
+				if(entry.getName().endsWith(".class")) {
+					hierarchy.add(contents[i]);
+				}
+			});
+
+			FusedRemapper remapper = new FusedRemapper(this.stages, hierarchy);
+			String[] names = new String[entries.size()];
+			this.forEach(pool, entries.size(), i -> {
+				names[i] = entries.get(i).getName();
+				if(names[i].endsWith(".class")) {
+					ClassReader reader = new ClassReader(contents[i]);
+					names[i] = remapper.map(reader.getClassName()) + ".class";
+					contents[i] = this.transform(reader, remapper);
+				}
+			});
+
+			// written in the order of the input jar, regardless of which class finished first
+			try(OutputStream stream = Files.newOutputStream(output); ZipOutputStream zos = new ZipOutputStream(stream)) {
+				for(int i = 0; i < names.length; i++) {
+					ZipEntry out = new ZipEntry(names[i]);
+					out.setTime(entries.get(i).getTime());
+					zos.putNextEntry(out);
+					zos.write(contents[i]);
+					zos.closeEntry();
+					contents[i] = null;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void forEach(ForkJoinPool pool, int size, EntryAction action) throws IOException {
+		try {
+			pool.submit(() -> IntStream.range(0, size).parallel().forEach(i -> {
+				try {
+					action.accept(i);
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			})).get();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e.getCause()).getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	interface EntryAction {
+		void accept(int index) throws IOException;
+	}
+
+	private byte[] transform(ClassReader reader, FusedRemapper remapper) {
+		ClassWriter writer = new ClassWriter(0);
+		ClassVisitor visitor = writer;
+		if(this.killLvt) {
+			visitor = new ClassVisitor(Opcodes.ASM9, visitor) {
+				@Override
+				public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+					return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+						@Override
+						public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end, int index) {}
+					};
+				}
+			};
+		}
+		visitor = new ClassRemapper(visitor, remapper);
+		if(this.accessTransformer != null) {
+			visitor = this.accessTransformer.visitor(visitor, remapper.view(this.stages.size() - 1));
+		}
+		reader.accept(visitor, 0);
+		return writer.toByteArray();
+	}
+}
@@ -0,0 +1,131 @@
+package io.github.fukkitmc.crusty.remap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One csrg file worth of mappings, the equivalent of a single SpecialSource pass. Member keys use the owner and
+ * descriptor names of the namespace this set is applied to.
+ */
+public class MappingSet {
+	private final Map<String, String> classes = new HashMap<>();
+	private final Map<String, String> packages = new HashMap<>();
+	private final Map<String, String> fields = new HashMap<>();
+	private final Map<String, String> methods = new HashMap<>();
+	/**
+	 * package prefixes which may be renamed, "." for the default package. Empty means everything
+	 */
+	private final List<String> only = new ArrayList<>();
+	private final Set<String> excluded = new HashSet<>();
+
+	public static MappingSet read(Path csrg) throws IOException {
+		MappingSet set = new MappingSet();
+		set.load(csrg);
+		return set;
+	}
+
+	/**
+	 * Reads the mappings and honors the {@code --only} and {@code -e} options of a BuildData map command
+	 */
+	public static MappingSet fromCommand(String command, Path csrg, Path workingDir) throws IOException {
+		MappingSet set = read(csrg);
+		String[] args = command.split(" ");
+		for(int i = 0; i < args.length - 1; i++) {
+			if(args[i].equals("--only")) {
+				set.only.add(args[++i]);
+			} else if(args[i].equals("-e")) {
+				for(String line : Files.readAllLines(workingDir.resolve(args[++i]))) {
+					if(!line.isEmpty() && line.charAt(0) != '#') {
+						set.excluded.add(line.trim());
+					}
+				}
+			}
+		}
+		return set;
+	}
+
+	public void load(Path csrg) throws IOException {
+		try(BufferedReader reader = Files.newBufferedReader(csrg)) {
+			String ln;
+			while((ln = reader.readLine()) != null) {
+				if(ln.isEmpty() || ln.charAt(0) == '#') {
+					continue;
+				}
+
+				String[] split = ln.split(" ");
+				if(split.length == 2) {
+					if(split[0].endsWith("/")) {
+						this.packages.put(split[0].equals("./") ? "" : split[0], split[1]);
+					} else {
+						this.classes.put(split[0], split[1]);
+					}
+				} else if(split.length == 3) {
+					this.fields.put(split[0] + ' ' + split[1], split[2]);
+				} else if(split.length == 4) {
+					this.methods.put(split[0] + ' ' + split[1] + ' ' + split[2], split[3]);
+				}
+			}
+		}
+	}
+
+	public String mapClass(String name) {
+		if(!this.isRenamable(name)) {
+			return name;
+		}
+
+		int current = name.length();
+		do {
+			String mapped = this.classes.get(name.substring(0, current));
+			if(mapped != null) {
+				return mapped + name.substring(current);
+			}
+			current = name.lastIndexOf('$', current - 1);
+		} while(current != -1);
+
+		if(!this.packages.isEmpty()) {
+			int pkg = name.lastIndexOf('/') + 1;
+			String mapped = this.packages.get(name.substring(0, pkg));
+			if(mapped != null) {
+				return mapped + name.substring(pkg);
+			}
+		}
+		return name;
+	}
+
+	public String getField(String owner, String name) {
+		return this.fields.get(owner + ' ' + name);
+	}
+
+	public String getMethod(String owner, String name, String desc) {
+		return this.methods.get(owner + ' ' + name + ' ' + desc);
+	}
+
+	public boolean hasMembers() {
+		return !this.fields.isEmpty() || !this.methods.isEmpty();
+	}
+
+	private boolean isRenamable(String name) {
+		if(this.excluded.contains(name)) {
+			return false;
+		}
+
+		if(this.only.isEmpty()) {
+			return true;
+		}
+
+		for(String prefix : this.only) {
+			if(prefix.equals(".") ? name.indexOf('/') == -1 : name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,82 +1,571 @@
 package io.github.fukkitmc.crusty.util;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import com.google.common.hash.HashCode;
 import io.github.fukkitmc.crusty.util.Clock;
 import org.gradle.api.logging.Logger;
 
+/**
+ * Downloads over one HTTP client shared by the whole daemon, so connections (and HTTP/2 sessions) to the same host are
+ * reused. Requests are asynchronous, several artifacts can be in flight at once.
+ */
 public class DownloadUtil {
+	private static final int HTTP_PARTIAL = 206, HTTP_NOT_MODIFIED = 304;
+	/**
+	 * How often an interrupted download is resumed before giving up
+	 */
+	private static final int ATTEMPTS = 3;
+	/**
+	 * Files aren't split into segments smaller than this
+	 */
+	private static final long MIN_SEGMENT = 1024 * 1024;
+	public static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "crusty-download");
+		thread.setDaemon(true);
+		return thread;
+	});
+	public static final HttpClient CLIENT = HttpClient.newBuilder()
+	                                                  .version(HttpClient.Version.HTTP_2)
+	                                                  .followRedirects(HttpClient.Redirect.NORMAL)
+	                                                  .connectTimeout(Duration.ofSeconds(30))
+	                                                  .executor(EXECUTOR)
+	                                                  .build();
+
 	public static Result read(URL url, String etag, long currentLastModifyDate, Logger logger, boolean offline, boolean compressed) throws IOException {
+		return read(url, etag, currentLastModifyDate, logger, offline, compressed, 0, null);
+	}
+
+	public static Result read(URL url, String etag, long currentLastModifyDate, Logger logger, boolean offline, boolean compressed, long resumeFrom, String ifRange) throws IOException {
+		try {
+			return readAsync(url, etag, currentLastModifyDate, logger, offline, compressed, resumeFrom, ifRange).join();
+		} catch(CompletionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public static CompletableFuture<Result> readAsync(URL url, String etag, long currentLastModifyDate, Logger logger, boolean offline, boolean compressed) {
+		return readAsync(url, etag, currentLastModifyDate, logger, offline, compressed, 0, null);
+	}
+
+	/**
+	 * @param resumeFrom asks for the rest of the file from this offset, if the server's copy still matches {@code ifRange}
+	 * @return completes with null if what we've got is already fine, the body stream otherwise
+	 */
+	public static CompletableFuture<Result> readAsync(URL url, String etag, long currentLastModifyDate, Logger logger, boolean offline, boolean compressed, long resumeFrom, String ifRange) {
 		Clock clock = new Clock("Validating/Downloading " + url + " cache took %dms", logger);
-		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		HttpRequest.Builder request;
+		try {
+			request = HttpRequest.newBuilder(url.toURI()).GET();
+		} catch(URISyntaxException e) {
+			return CompletableFuture.failedFuture(new IOException(e));
+		}
+
 		// If the output already exists we'll use it's last modified time
 		if (currentLastModifyDate != -1) {
 			if(offline) {
 				clock.close();
-				return null;
+				return CompletableFuture.completedFuture(null);
 			}
-			connection.setIfModifiedSince(currentLastModifyDate);
+			request.header("If-Modified-Since", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(currentLastModifyDate).atZone(ZoneOffset.UTC)));
 		}
 
-		if (etag != null) {
-			connection.setRequestProperty("If-None-Match", etag);
+		// conditional requests only make sense with a copy to fall back on
+		if (etag != null && currentLastModifyDate != -1) {
+			request.header("If-None-Match", etag);
 		}
 
 
+		// ranges of an encoded response are ranges of the compressed bytes, those can't be stitched together
+		if (resumeFrom > 0 && ifRange != null && !compressed) {
+			request.header("Range", "bytes=" + resumeFrom + "-");
+			request.header("If-Range", ifRange);
+		}
+
 		if(compressed) {
 			// We want to download gzip compressed stuff
-			connection.setRequestProperty("Accept-Encoding", "br"); // todo maybe use brotili idk
+			request.header("Accept-Encoding", "gzip, deflate");
 		}
 
-		// Try make the connection, it will hang here if the connection is bad
-		connection.connect();
+		return CLIENT.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream()).handle((response, throwable) -> {
+			if(throwable != null) {
+				if(throwable instanceof CompletionException && throwable.getCause() != null) {
+					throwable = throwable.getCause();
+				}
+				clock.close();
+				throw new CompletionException(throwable instanceof IOException ? throwable : new IOException("Failed to download " + url, throwable));
+			}
+
+			int code = response.statusCode();
+			if ((code < 200 || code > 299) && code != HTTP_NOT_MODIFIED) {
+				//Didn't get what we expected
+				close(response.body());
+				clock.close();
+				throw new CompletionException(new IOException("HTTP " + code + " for " + url));
+			}
+
+			if (code == HTTP_NOT_MODIFIED && currentLastModifyDate == -1) {
+				close(response.body());
+				clock.close();
+				throw new CompletionException(new IOException("HTTP 304 for " + url + " without a local copy"));
+			}
+
+			long modifyTime = response.headers().firstValue("Last-Modified").map(DownloadUtil::parseDate).orElse(-1L);
+
+			if (currentLastModifyDate != -1 && (code == HTTP_NOT_MODIFIED || modifyTime > 0 && currentLastModifyDate >= modifyTime)) {
+				if(logger != null) logger.lifecycle("'{}' Not Modified, skipping.", url);
+				close(response.body());
+				clock.close();
+				return null; //What we've got is already fine
+			}
+
+			long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+			long offset = code == HTTP_PARTIAL ? parseRangeStart(response.headers().firstValue("Content-Range").orElse("")) : 0;
+			String encoding = response.headers().firstValue("Content-Encoding").map(value -> value.trim().toLowerCase(Locale.ROOT)).orElse("identity");
+			boolean identity = encoding.equals("identity");
+
+			if (offset > 0) {
+				if(logger != null) logger.lifecycle("'{}' Resuming from {}", url, toNiceSize(offset));
+			} else if (contentLength >= 0) {
+				if(logger != null) logger.lifecycle("'{}' Changed, downloading {}{}", url, toNiceSize(contentLength), identity ? "" : " (" + encoding + ")");
+			}
 
-		int code = connection.getResponseCode();
+			InputStream stream;
+			try {
+				stream = decode(new SizeCheckedInputStream(response.body(), contentLength), encoding);
+			} catch(IOException e) {
+				close(response.body());
+				clock.close();
+				throw new CompletionException(e);
+			}
+
+			String etagHeader = response.headers().firstValue("ETag").orElse(null);
+			// weak etags can't be used for ranges
+			String validator = !identity ? null : etagHeader != null && !etagHeader.startsWith("W/") ? etagHeader : response.headers().firstValue("Last-Modified").orElse(null);
+			boolean ranges = identity && response.headers().firstValue("Accept-Ranges").map("bytes"::equalsIgnoreCase).orElse(false);
+			return new Result(stream, modifyTime, clock, etagHeader, offset, validator, identity ? contentLength : -1, ranges);
+		});
+	}
 
-		if ((code < 200 || code > 299) && code != HttpURLConnection.HTTP_NOT_MODIFIED) {
-			//Didn't get what we expected
-			clock.close();
-			throw new IOException(connection.getResponseMessage() + " for " + url);
+	/**
+	 * @return the decoded body, decompressed as it's read
+	 */
+	private static InputStream decode(InputStream body, String encoding) throws IOException {
+		switch(encoding) {
+		case "identity":
+			return body;
+		case "gzip":
+		case "x-gzip":
+			return new GZIPInputStream(body, 64 * 1024);
+		case "deflate":
+			// meant to be zlib wrapped, but some servers send raw deflate
+			PushbackInputStream pushback = new PushbackInputStream(body, 2);
+			int cmf = pushback.read(), flg = pushback.read();
+			if(flg != -1) pushback.unread(flg);
+			if(cmf != -1) pushback.unread(cmf);
+			boolean zlib = (cmf & 0x0F) == 8 && flg != -1 && (cmf << 8 | flg) % 31 == 0;
+			return new InflaterInputStream(pushback, new Inflater(!zlib), 64 * 1024);
+		default:
+			throw new IOException("Unsupported content encoding " + encoding);
 		}
+	}
 
-		long modifyTime = connection.getHeaderFieldDate("Last-Modified", -1);
+	/**
+	 * Downloads to a {@code .part} file next to {@code to} and moves it into place once complete. An interrupted download
+	 * is picked up where it stopped, by this call or a later one, as long as the server's copy didn't change meanwhile.
+	 *
+	 * @param sha1 the expected digest of the file, or null if it isn't known
+	 * @param segments how many ranges of the file may be fetched at once, if the server supports ranges
+	 */
+	public static void download(URL url, Path to, String sha1, Logger logger, boolean offline, boolean compressed, int segments) throws IOException {
+		Files.createDirectories(to.getParent());
+		Path etagPath = sibling(to, ".etag"), part = sibling(to, ".part"), partValidator = sibling(to, ".part.validator");
 
-		if (currentLastModifyDate != -1 && (code == HttpURLConnection.HTTP_NOT_MODIFIED || modifyTime > 0 && currentLastModifyDate >= modifyTime)) {
-			if(logger != null) logger.lifecycle("'{}' Not Modified, skipping.", url);
-			clock.close();
-			return null; //What we've got is already fine
+		String etag = null;
+		long lastModifyTime;
+		if(Files.exists(to)) {
+			lastModifyTime = Files.getLastModifiedTime(to).toMillis();
+			if(Files.exists(etagPath)) {
+				try(BufferedReader reader = Files.newBufferedReader(etagPath)) {
+					etag = reader.readLine();
+				}
+			}
+		} else {
+			lastModifyTime = -1;
+			// left behind by a file deleted since, it would make the server skip the body
+			Files.deleteIfExists(etagPath);
 		}
 
-		long contentLength = connection.getContentLengthLong();
+		for(int attempt = 1; ; attempt++) {
+			long resumeFrom = 0;
+			String ifRange = null;
+			if(Files.exists(part) && Files.exists(partValidator)) {
+				resumeFrom = Files.size(part);
+				ifRange = Files.readString(partValidator);
+			}
+
+			Result result = read(url, etag, lastModifyTime, logger, offline, compressed, resumeFrom, ifRange);
+			if(result == null) {
+				return;
+			}
+
+			MessageDigest digest = sha1 == null ? null : sha1();
+			boolean segmented = false;
+			try(InputStream input = result.stream) {
+				if(result.offset != resumeFrom) {
+					// the server sent the whole file, or a range we didn't ask for
+					if(result.offset != 0) {
+						throw new IOException("Unexpected range from " + url);
+					}
+					Files.deleteIfExists(partValidator);
+				}
 
-		if (contentLength >= 0) {
-			if(logger != null) logger.lifecycle("'{}' Changed, downloading {}", url, toNiceSize(contentLength));
+				int ranges = result.offset == 0 && result.ranges && result.validator != null ? (int) Math.min(segments, result.length / MIN_SEGMENT) : 1;
+				if(ranges > 1) {
+					segmented = true;
+					// a preallocated part can't be resumed from its size
+					Files.deleteIfExists(partValidator);
+					downloadSegments(url, result, part, ranges, logger);
+					if(digest != null) {
+						try(FileChannel channel = FileChannel.open(part, StandardOpenOption.READ)) {
+							digest(channel, result.length, digest);
+						}
+					}
+				} else {
+					try(FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+						channel.truncate(result.offset);
+						if(digest != null && result.offset > 0) {
+							digest(channel, result.offset, digest);
+						}
+
+						if(result.offset == 0 && result.validator != null) {
+							Files.writeString(partValidator, result.validator);
+						}
+
+						channel.position(result.offset);
+						OutputStream output = Channels.newOutputStream(channel);
+						if(digest != null) {
+							output = new DigestOutputStream(output, digest);
+						}
+						input.transferTo(output);
+					}
+				}
+				result.clock.close();
+			} catch(IOException e) {
+				if(attempt >= ATTEMPTS) {
+					throw e;
+				}
+				if(logger != null) logger.warn("Download of {} was interrupted ({}), retrying", url, e.toString());
+				if(segmented) {
+					// some servers claim to support ranges and answer them with the whole file
+					segments = 1;
+				}
+				continue;
+			}
+
+			if(digest != null) {
+				String actual = HashCode.fromBytes(digest.digest()).toString();
+				if(!actual.equalsIgnoreCase(sha1)) {
+					Files.deleteIfExists(part);
+					Files.deleteIfExists(partValidator);
+					throw new IOException("Checksum mismatch for " + url + ", expected " + sha1 + " got " + actual);
+				}
+			}
+
+			//Set the modify time to match the server's (if we know it)
+			if(result.lastModifyDate > 0) {
+				Files.setLastModifiedTime(part, FileTime.fromMillis(result.lastModifyDate));
+			}
+			Files.move(part, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.deleteIfExists(partValidator);
+
+			String output = result.etag;
+			if(output != null) {
+				try(BufferedWriter writer = Files.newBufferedWriter(etagPath)) {
+					writer.write(output);
+				}
+			}
+			return;
 		}
+	}
 
-		try { // Try download to the output
-			InputStream stream = connection.getInputStream();
-			return new Result(stream, modifyTime, clock, connection.getHeaderField("ETag"));
-		} catch (IOException e) {
-			clock.close();
-			throw e;
+	/**
+	 * Fetches the file as several ranges at once into a preallocated file, the first range is read from the response which
+	 * is already open
+	 */
+	private static void downloadSegments(URL url, Result result, Path part, int segments, Logger logger) throws IOException {
+		long length = result.length, size = (length + segments - 1) / segments;
+		if(logger != null) logger.lifecycle("'{}' Downloading in {} segments", url, segments);
+		try(FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.write(ByteBuffer.allocate(1), length - 1);
+
+			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			for(long start = size; start < length; start += size) {
+				long from = start, to = Math.min(length, start + size) - 1;
+				HttpRequest request = HttpRequest.newBuilder(URI.create(url.toString()))
+				                                 .header("Range", "bytes=" + from + "-" + to)
+				                                 .header("If-Range", result.validator)
+				                                 .GET()
+				                                 .build();
+				futures.add(CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).thenAcceptAsync(response -> {
+					try(InputStream input = response.body()) {
+						long offset = parseRangeStart(response.headers().firstValue("Content-Range").orElse(""));
+						if(response.statusCode() != HTTP_PARTIAL || offset != from) {
+							throw new IOException("HTTP " + response.statusCode() + " for range " + from + "-" + to + " of " + url);
+						}
+						write(input, channel, from, to + 1 - from);
+					} catch(IOException e) {
+						throw new CompletionException(e);
+					}
+				}, EXECUTOR));
+			}
+
+			try {
+				write(result.stream, channel, 0, Math.min(length, size));
+			} finally {
+				CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new));
+				try {
+					all.join();
+				} catch(CompletionException e) {
+					futures.forEach(future -> future.cancel(true));
+					if(e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new IOException("Failed to download " + url, e.getCause());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes {@code length} bytes of the stream at {@code position}, without touching the channel's own position
+	 */
+	private static void write(InputStream input, FileChannel channel, long position, long length) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		while(length > 0) {
+			int read = input.read(buffer, 0, (int) Math.min(buffer.length, length));
+			if(read < 0) {
+				throw new EOFException("Stream ended " + length + " bytes early");
+			}
+
+			ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, read);
+			while(wrapped.hasRemaining()) {
+				position += channel.write(wrapped, position);
+			}
+			length -= read;
+		}
+	}
+
+	public static CompletableFuture<Void> downloadAsync(URL url, Path to, String sha1, Logger logger, boolean offline, boolean compressed, int segments) {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				download(url, to, sha1, logger, offline, compressed, segments);
+			} catch(IOException e) {
+				throw new CompletionException(e);
+			}
+		}, EXECUTOR);
+	}
+
+	/**
+	 * Mojang's content addressed urls ({@code .../objects/<sha1>/<name>}) carry the digest of the file
+	 *
+	 * @return the expected sha1 of the url's content, or null if it isn't known
+	 */
+	public static String sha1Of(String url) {
+		int start = url.indexOf("/objects/");
+		if(start == -1) {
+			return null;
+		}
+
+		start += "/objects/".length();
+		int end = url.indexOf('/', start);
+		if(end - start != 40) {
+			return null;
+		}
+
+		for(int i = start; i < end; i++) {
+			if(Character.digit(url.charAt(i), 16) == -1) {
+				return null;
+			}
+		}
+		return url.substring(start, end);
+	}
+
+	private static Path sibling(Path path, String suffix) {
+		return path.resolveSibling(path.getFileName() + suffix);
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void digest(FileChannel channel, long length, MessageDigest digest) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		for(long position = 0; position < length; ) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+			int read = channel.read(buffer, position);
+			if(read < 0) {
+				throw new EOFException();
+			}
+			buffer.flip();
+			digest.update(buffer);
+			position += read;
+		}
+	}
+
+	/**
+	 * @return the first byte of a {@code bytes start-end/size} range, -1 if it can't be parsed
+	 */
+	private static long parseRangeStart(String range) {
+		if(!range.startsWith("bytes ")) {
+			return -1;
+		}
+
+		int end = range.indexOf('-');
+		try {
+			return end == -1 ? -1 : Long.parseLong(range.substring("bytes ".length(), end).trim());
+		} catch(NumberFormatException e) {
+			return -1;
 		}
 	}
 
+	private static long parseDate(String date) {
+		try {
+			return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch(DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	private static void close(InputStream stream) {
+		try {
+			stream.close();
+		} catch(IOException ignored) {
+		}
+	}
+
+
+	/**
+	 * Fails at the end of the stream if it didn't have the advertised length, so a truncated body never passes for a
+	 * complete one
+	 */
+	static class SizeCheckedInputStream extends FilterInputStream {
+		private final long expected;
+		private long read;
+
+		SizeCheckedInputStream(InputStream in, long expected) {
+			super(in);
+			this.expected = expected;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			this.check(read == -1 ? -1 : 1);
+			return read;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			this.check(read);
+			return read;
+		}
+
+		private void check(int read) throws IOException {
+			if(read == -1) {
+				if(this.expected >= 0 && this.read != this.expected) {
+					throw new EOFException("Expected " + this.expected + " bytes, got " + this.read);
+				}
+			} else {
+				this.read += read;
+			}
+		}
+	}
 
 	public static class Result {
 		public final InputStream stream;
 		public final long lastModifyDate;
 		public final Clock clock;
 		public final String etag;
+		/**
+		 * Where in the file the stream starts, non zero if the server resumed a download
+		 */
+		public final long offset;
+		/**
+		 * What the download can be resumed against, if the server supports it
+		 */
+		public final String validator;
+
+		/**
+		 * The length of the stream, -1 if unknown
+		 */
+		public final long length;
+		/**
+		 * If the server can send ranges of the file
+		 */
+		public final boolean ranges;
 
 		public Result(InputStream stream, long date, Clock clock, String etag) {
+			this(stream, date, clock, etag, 0, null, -1, false);
+		}
+
+		public Result(InputStream stream, long date, Clock clock, String etag, long offset, String validator, long length, boolean ranges) {
 			this.stream = stream;
 			this.lastModifyDate = date;
 			this.clock = clock;
 			this.etag = etag;
+			this.offset = offset;
+			this.validator = validator;
+			this.length = length;
+			this.ranges = ranges;
 		}
 	}
 
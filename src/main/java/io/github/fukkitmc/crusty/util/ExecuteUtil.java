@@ -1,38 +1,264 @@
 package io.github.fukkitmc.crusty.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.Method;
-import java.net.MalformedURLException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.Permission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
-import java.util.jar.Manifest;
 
+import org.gradle.api.logging.Logger;
+
+/**
+ * Runs tool jars, in a forked jvm unless asked to run them inside the daemon.
+ * <p>
+ * Inside the daemon, class loaders are pooled, keyed by the contents of the jar, so repeat runs of a tool get loaded and
+ * JIT compiled code. Static state of the tool carries over between those runs. A pooled loader is only ever used by one
+ * run at a time, concurrent runs of the same tool get loaders of their own. The pool is bounded, loaders falling out of
+ * it are closed. Tools may call {@link System#exit(int)}, so a security manager turning that into an exception is
+ * installed for as long as any tool runs, which every other task running in the daemon meanwhile goes through as well.
+ * When the runtime doesn't allow one (java 17 and later, unless the daemon runs with
+ * {@code -Djava.security.manager=allow}, which still has the jdk print its deprecation warning once) or another one is
+ * installed, tools are forked after all.
+ */
 public class ExecuteUtil {
-	public static void execute(Path jar, String[] args) throws IOException {
-		try(URLClassLoader classLoader = new URLClassLoader(new URL[] {jar.toUri().toURL()}, ClassLoader.getSystemClassLoader())) {
-			String mainClass;
-			try(FileSystem system = FileSystems.newFileSystem(jar, (ClassLoader) null)) {
-				try(InputStream input = Files.newInputStream(system.getPath(JarFile.MANIFEST_NAME))) {
-					Manifest manifest = new Manifest(input);
-					mainClass = manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+	/**
+	 * Tools kept loaded, least recently used ones are closed first
+	 */
+	private static final int MAX_TOOLS = 4;
+	/**
+	 * Idle loaders kept per tool, enough for the usual number of concurrent decompiler shards
+	 */
+	private static final int MAX_IDLE = 4;
+	private static final Map<String, Tool> TOOLS = new LinkedHashMap<>(16, .75f, true);
+	private static final ThreadLocal<Boolean> RUNNING = new ThreadLocal<>();
+	private static final Object GUARD = new Object();
+	private static int running;
+	private static boolean forkLogged;
+
+	/**
+	 * @param inProcess run the tool inside the daemon, on a pooled class loader
+	 */
+	public static void execute(Path jar, String[] args, Logger logger, boolean inProcess) throws IOException {
+		if(!inProcess) {
+			fork(jar, args);
+			return;
+		}
+
+		if(!acquireExitGuard()) {
+			synchronized(GUARD) {
+				if(!forkLogged) {
+					forkLogged = true;
+					logger.lifecycle("Running BuildData tools in a forked jvm, add -Djava.security.manager=allow to org.gradle.jvmargs to run them in the daemon");
+				}
+			}
+			fork(jar, args);
+			return;
+		}
+
+		try {
+			run(jar, args);
+		} finally {
+			releaseExitGuard();
+		}
+	}
+
+	private static void run(Path jar, String[] args) throws IOException {
+		String hash = HashUtil.hash(jar);
+		Tool tool;
+		synchronized(TOOLS) {
+			tool = TOOLS.computeIfAbsent(hash, $ -> new Tool());
+			if(TOOLS.size() > MAX_TOOLS) {
+				Map.Entry<String, Tool> eldest = TOOLS.entrySet().iterator().next();
+				TOOLS.remove(eldest.getKey());
+				eldest.getValue().evict();
+			}
+		}
+
+		Loader loader = tool.acquire(jar);
+		Thread thread = Thread.currentThread();
+		ClassLoader context = thread.getContextClassLoader();
+		thread.setContextClassLoader(loader.classLoader);
+		RUNNING.set(Boolean.TRUE);
+		try {
+			loader.main.invokeExact(args);
+		} catch(ExitException e) {
+			if(e.status != 0) {
+				throw new IOException(jar.getFileName() + " exited with status " + e.status);
+			}
+		} catch(IOException | RuntimeException | Error e) {
+			throw e;
+		} catch(Throwable e) {
+			throw new RuntimeException(e);
+		} finally {
+			RUNNING.remove();
+			thread.setContextClassLoader(context);
+			tool.release(loader);
+		}
+	}
+
+	private static void fork(Path jar, String[] args) throws IOException {
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		command.add("-jar");
+		command.add(jar.toString());
+		command.addAll(List.of(args));
+		try {
+			int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+			if(status != 0) {
+				throw new IOException(jar.getFileName() + " exited with status " + status);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while running " + jar.getFileName(), e);
+		}
+	}
+
+	/**
+	 * Installs the exit guard if no tool is running yet
+	 *
+	 * @return false if the guard can't be installed, and the tool has to be forked
+	 */
+	@SuppressWarnings("removal")
+	private static boolean acquireExitGuard() {
+		synchronized(GUARD) {
+			if(running > 0) {
+				running++;
+				return true;
+			}
+
+			if(Runtime.version().feature() >= 17 && !"allow".equals(System.getProperty("java.security.manager"))) {
+				return false; // would be refused, or print a deprecation warning on 17
+			}
+			if(System.getSecurityManager() != null) {
+				return false;
+			}
+
+			try {
+				System.setSecurityManager(new ExitGuard());
+			} catch(UnsupportedOperationException | SecurityException e) {
+				return false;
+			}
+			running = 1;
+			return true;
+		}
+	}
+
+	/**
+	 * Uninstalls the exit guard once the last tool finished
+	 */
+	@SuppressWarnings("removal")
+	private static void releaseExitGuard() {
+		synchronized(GUARD) {
+			if(--running == 0 && System.getSecurityManager() instanceof ExitGuard) {
+				System.setSecurityManager(null);
+			}
+		}
+	}
+
+	@SuppressWarnings("removal")
+	static class ExitGuard extends SecurityManager {
+		@Override
+		public void checkExit(int status) {
+			if(RUNNING.get() != null) {
+				throw new ExitException(status);
+			}
+		}
+
+		@Override
+		public void checkPermission(Permission perm) {
+		}
+
+		@Override
+		public void checkPermission(Permission perm, Object context) {
+		}
+	}
+
+	static class Tool {
+		private final Deque<Loader> idle = new ArrayDeque<>();
+		private boolean evicted;
+
+		/**
+		 * @param jar a copy of the tool, the copy a pooled loader was created from may be gone by now
+		 */
+		Loader acquire(Path jar) throws IOException {
+			Loader loader;
+			synchronized(this) {
+				loader = this.idle.pollFirst();
+			}
+			return loader == null ? new Loader(jar) : loader;
+		}
+
+		void release(Loader loader) {
+			synchronized(this) {
+				if(!this.evicted && this.idle.size() < MAX_IDLE) {
+					this.idle.addFirst(loader);
+					return;
 				}
 			}
+			loader.close();
+		}
 
+		/**
+		 * Closes the idle loaders, the ones in use are closed when they're released
+		 */
+		void evict() {
+			List<Loader> loaders;
+			synchronized(this) {
+				this.evicted = true;
+				loaders = new ArrayList<>(this.idle);
+				this.idle.clear();
+			}
+			loaders.forEach(Loader::close);
+		}
+	}
+
+	static class Loader {
+		final URLClassLoader classLoader;
+		final MethodHandle main;
+
+		Loader(Path jar) throws IOException {
+			String mainClass;
+			try(JarFile file = new JarFile(jar.toFile())) {
+				mainClass = file.getManifest().getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+			}
+
+			this.classLoader = new URLClassLoader(new URL[] {jar.toUri().toURL()}, ClassLoader.getSystemClassLoader());
 			try {
-				Class<?> type = Class.forName(mainClass, false, classLoader);
-				Method main = type.getDeclaredMethod("main", String[].class);
-				main.invoke(null, (Object) args);
-			} catch(Throwable e) {
+				Class<?> type = Class.forName(mainClass, false, this.classLoader);
+				this.main = MethodHandles.publicLookup().findStatic(type, "main", MethodType.methodType(void.class, String[].class));
+			} catch(ReflectiveOperationException e) {
+				this.classLoader.close();
 				throw new RuntimeException(e);
 			}
 		}
+
+		void close() {
+			try {
+				this.classLoader.close();
+			} catch(IOException ignored) {
+			}
+		}
+	}
+
+	static class ExitException extends SecurityException {
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		ExitException(int status) {
+			super("System.exit(" + status + ")");
+			this.status = status;
+		}
 	}
 }
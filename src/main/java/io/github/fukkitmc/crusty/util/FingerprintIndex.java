@@ -0,0 +1,195 @@
+package io.github.fukkitmc.crusty.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+
+/**
+ * Persistent content digests of files, keyed by path and remembered along with the file's size, modification time and
+ * file key. A file is only read again once any of those change, so content based up-to-date checks cost about as much as
+ * a stat.
+ * <p>
+ * The index is an append only log shared by every build using the same cache, later records of a path win. Each record
+ * carries a checksum. It's compacted when loaded if most of it is stale, and rewritten from the records read so far if
+ * a bad record is found, such as one cut short by a build which died midway, as the records behind it couldn't be
+ * read again. Files modified just before being hashed aren't recorded, as another write within the timestamp
+ * granularity couldn't be told apart.
+ */
+public class FingerprintIndex {
+	private static final Map<Path, FingerprintIndex> INDEXES = new ConcurrentHashMap<>();
+	private static final long RACY = TimeUnit.SECONDS.toNanos(2);
+	private static final int MAX_RECORD = 64 * 1024;
+	private final Path file;
+	private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+
+	private FingerprintIndex(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the index stored at {@code file}, loaded once per daemon
+	 */
+	public static FingerprintIndex of(Path file) {
+		return INDEXES.computeIfAbsent(file.toAbsolutePath().normalize(), FingerprintIndex::load);
+	}
+
+	/**
+	 * @return the index stored at {@code file}, freshly read
+	 */
+	static FingerprintIndex load(Path file) {
+		FingerprintIndex index = new FingerprintIndex(file);
+		index.load();
+		return index;
+	}
+
+	/**
+	 * Adds the digest of the file to the hasher, only reading the file if it changed since it was last hashed
+	 */
+	public void hash(Hasher hasher, Path file) throws IOException {
+		hasher.putBytes(this.digest(file));
+	}
+
+	public String hash(Path file) throws IOException {
+		return HashCode.fromBytes(this.digest(file)).toString();
+	}
+
+	/**
+	 * @return the digest of the file, as {@link HashUtil#digest(Path)} computes it
+	 */
+	public byte[] digest(Path file) throws IOException {
+		String path = file.toAbsolutePath().normalize().toString();
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		Fingerprint fingerprint = this.fingerprints.get(path);
+		if(fingerprint != null && fingerprint.matches(attributes)) {
+			return fingerprint.digest;
+		}
+
+		long now = System.currentTimeMillis();
+		byte[] digest = HashUtil.digest(file);
+		fingerprint = new Fingerprint(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), fileKey(attributes), digest);
+		// a file which may still be written to within the same timestamp is hashed again next time
+		if(TimeUnit.MILLISECONDS.toNanos(now) - fingerprint.modified > RACY && Files.readAttributes(file, BasicFileAttributes.class).lastModifiedTime().equals(attributes.lastModifiedTime())) {
+			this.fingerprints.put(path, fingerprint);
+			this.append(path, fingerprint);
+		}
+		return digest;
+	}
+
+	private void load() {
+		int records = 0;
+		boolean damaged = false;
+		try(InputStream input = Files.newInputStream(this.file); DataInputStream data = new DataInputStream(input)) {
+			while(true) {
+				int length;
+				try {
+					length = data.readInt();
+				} catch(EOFException e) {
+					break; // the end
+				}
+
+				if(length < 0 || length > MAX_RECORD) {
+					damaged = true; // garbage, the rest of the log can't be trusted
+					break;
+				}
+				byte[] record = new byte[length];
+				data.readFully(record);
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				if(data.readInt() != (int) crc.getValue()) {
+					damaged = true; // cut short, and swallowed part of the next record
+					break;
+				}
+
+				DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+				String path = fields.readUTF();
+				long size = fields.readLong(), modified = fields.readLong();
+				String key = fields.readUTF();
+				byte[] digest = new byte[fields.readUnsignedByte()];
+				fields.readFully(digest);
+				this.fingerprints.put(path, new Fingerprint(size, modified, key, digest));
+				records++;
+			}
+		} catch(NoSuchFileException e) {
+			return;
+		} catch(IOException e) {
+			damaged = true; // a record cut short by a build which died midway, whatever was read before it is fine
+		}
+
+		if(damaged || records > 1024 && records > this.fingerprints.size() * 2) {
+			this.compact();
+		}
+	}
+
+	private synchronized void compact() {
+		try {
+			Path temp = Files.createTempFile(this.file.getParent(), this.file.getFileName().toString(), ".tmp");
+			try(OutputStream output = Files.newOutputStream(temp)) {
+				for(Map.Entry<String, Fingerprint> entry : this.fingerprints.entrySet()) {
+					output.write(record(entry.getKey(), entry.getValue()));
+				}
+			}
+			Files.move(temp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException ignored) {
+		}
+	}
+
+	private synchronized void append(String path, Fingerprint fingerprint) {
+		try {
+			Files.createDirectories(this.file.getParent());
+			// one write per record, so records appended by concurrent builds don't interleave
+			Files.write(this.file, record(path, fingerprint), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		} catch(IOException ignored) {
+		}
+	}
+
+	private static byte[] record(String path, Fingerprint fingerprint) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(0);
+		data.writeUTF(path);
+		data.writeLong(fingerprint.size);
+		data.writeLong(fingerprint.modified);
+		data.writeUTF(fingerprint.key);
+		data.writeByte(fingerprint.digest.length);
+		data.write(fingerprint.digest);
+		data.writeInt(0);
+		byte[] record = bytes.toByteArray();
+		int length = record.length - 2 * Integer.BYTES;
+		CRC32 crc = new CRC32();
+		crc.update(record, Integer.BYTES, length);
+		ByteBuffer.wrap(record).putInt(0, length).putInt(record.length - Integer.BYTES, (int) crc.getValue());
+		return record;
+	}
+
+	private static String fileKey(BasicFileAttributes attributes) {
+		Object key = attributes.fileKey();
+		return key == null ? "" : key.toString();
+	}
+
+	record Fingerprint(long size, long modified, String key, byte[] digest) {
+		boolean matches(BasicFileAttributes attributes) {
+			return this.size == attributes.size()
+			       && this.modified == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+			       && this.key.equals(fileKey(attributes));
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package io.github.fukkitmc.crusty.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+public class HashUtil {
+	/**
+	 * Files are mapped a window at a time, so huge jars don't need a huge address range
+	 */
+	private static final long WINDOW = 64 * 1024 * 1024;
+
+	public static String hash(Path file) throws IOException {
+		return HashCode.fromBytes(digest(file)).toString();
+	}
+
+	public static byte[] digest(Path file) throws IOException {
+		Hasher hasher = Hashing.sha256().newHasher();
+		hash(hasher, file);
+		return hasher.hash().asBytes();
+	}
+
+	public static void hash(Hasher hasher, Path file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			hasher.putLong(size);
+			for(long position = 0; position < size; position += WINDOW) {
+				hasher.putBytes(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position)));
+			}
+		}
+	}
+}
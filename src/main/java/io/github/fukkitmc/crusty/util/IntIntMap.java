@@ -0,0 +1,80 @@
+package io.github.fukkitmc.crusty.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map of non negative int keys (usually {@link SymbolTable} ids) to int values, without boxing
+ */
+public class IntIntMap {
+	private int[] keys = filled(16);
+	private int[] values = new int[16];
+	private int size;
+
+	/**
+	 * @return the value of the key, -1 if there is none
+	 */
+	public int get(int key) {
+		if(key < 0) {
+			return -1;
+		}
+
+		for(int slot = mix(key) & (this.keys.length - 1); ; slot = (slot + 1) & (this.keys.length - 1)) {
+			int current = this.keys[slot];
+			if(current == key) {
+				return this.values[slot];
+			} else if(current == -1) {
+				return -1;
+			}
+		}
+	}
+
+	public void put(int key, int value) {
+		if(key < 0) {
+			throw new IllegalArgumentException("negative key " + key);
+		}
+
+		int slot = mix(key) & (this.keys.length - 1);
+		while(this.keys[slot] != -1 && this.keys[slot] != key) {
+			slot = (slot + 1) & (this.keys.length - 1);
+		}
+
+		if(this.keys[slot] == -1) {
+			this.keys[slot] = key;
+			if(++this.size * 2 > this.keys.length) {
+				this.values[slot] = value;
+				this.grow();
+				return;
+			}
+		}
+		this.values[slot] = value;
+	}
+
+	private void grow() {
+		int[] keys = this.keys, values = this.values;
+		this.keys = filled(keys.length * 2);
+		this.values = new int[keys.length * 2];
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != -1) {
+				int slot = mix(keys[i]) & (this.keys.length - 1);
+				while(this.keys[slot] != -1) {
+					slot = (slot + 1) & (this.keys.length - 1);
+				}
+				this.keys[slot] = keys[i];
+				this.values[slot] = values[i];
+			}
+		}
+	}
+
+	private static int[] filled(int length) {
+		int[] array = new int[length];
+		Arrays.fill(array, -1);
+		return array;
+	}
+
+	/**
+	 * Ids are dense, spread them over the table
+	 */
+	private static int mix(int key) {
+		return key * 0x9E3779B9;
+	}
+}
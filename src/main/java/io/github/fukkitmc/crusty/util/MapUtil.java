@@ -28,86 +28,190 @@
  */
 package io.github.fukkitmc.crusty.util;
 
-import java.io.File;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 
 public class MapUtil {
-
-	private static final Pattern MEMBER_PATTERN = Pattern.compile("(?:\\d+:\\d+:)?(.*?) (.*?) \\-> (.*)");
-	private final BiMap<String, String> obf2Buk = HashBiMap.create();
+	private final Map<String, String> obf2Buk = new HashMap<>();
 	//
 	private List<String> header = new ArrayList<>();
 
 	public void loadBuk(Path bukClasses) throws IOException {
-		for(String line : Files.readAllLines(bukClasses)) {
-			if(line.startsWith("#")) {
-				header.add(line);
-				continue;
-			}
+		try(BufferedReader reader = Files.newBufferedReader(bukClasses)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith("#")) {
+					header.add(line);
+					continue;
+				}
 
-			String[] split = line.split(" ");
-			if(split.length == 2) {
-				obf2Buk.put(split[0], split[1]);
+				int space = line.indexOf(' ');
+				if(space > 0 && space < line.length() - 1 && line.indexOf(' ', space + 1) == -1) {
+					obf2Buk.put(line.substring(0, space), line.substring(space + 1));
+				}
 			}
 		}
 	}
 
+	/**
+	 * Streams the mojmap, tokenizing each line in place. Only class names and the fields which end up in the output are
+	 * turned into strings, so memory is bounded by the size of the output rather than the mojmap.
+	 */
 	public void makeFieldMaps(Path mojIn, Path fields) throws IOException {
 		List<String> outFields = new ArrayList<>(header);
 
-		String currentClass = null;
-		outer:
-		for(String line : Files.readAllLines(mojIn)) {
-			if(line.startsWith("#")) {
-				continue;
+		try(LineScanner lines = new LineScanner(Files.newBufferedReader(mojIn))) {
+			String currentClass = null;
+			char[] obfClass = new char[64];
+			while(lines.next()) {
+				char[] line = lines.buffer;
+				int start = lines.start, end = lines.end;
+				if(start < end && line[start] == '#') {
+					continue;
+				}
+				while(start < end && line[start] <= ' ') start++;
+				while(end > start && line[end - 1] <= ' ') end--;
+				if(start == end) {
+					continue;
+				}
+
+				if(line[end - 1] == ':') {
+					// original.Name -> obf:
+					int arrow = indexOf(line, start, end, ARROW);
+					if(arrow == -1) {
+						currentClass = null;
+						continue;
+					}
+
+					int length = end - 1 - (arrow + ARROW.length);
+					if(obfClass.length < length) {
+						obfClass = new char[length * 2];
+					}
+					for(int i = 0; i < length; i++) {
+						char c = line[arrow + ARROW.length + i];
+						obfClass[i] = c == '.' ? '/' : c;
+					}
+					currentClass = deobfClass(new String(obfClass, 0, length), obf2Buk);
+				} else if(currentClass != null) {
+					// [from:to:]type name[(args)] -> obf
+					int space = indexOf(line, start, end, ' ');
+					int arrow = indexOf(line, space + 1, end, ARROW);
+					if(space == -1 || arrow == -1 || indexOf(line, space + 1, arrow, '(') != -1) {
+						continue; // not a field
+					}
+					if(indexOf(line, space + 1, arrow, '$') != -1) {
+						continue;
+					}
+
+					int obfStart = arrow + ARROW.length;
+					StringBuilder out = new StringBuilder(currentClass.length() + (end - obfStart) + (arrow - space) + 3);
+					out.append(currentClass).append(' ').append(line, obfStart, end - obfStart);
+					if(end - obfStart == 2 && (line[obfStart] == 'i' && line[obfStart + 1] == 'f' || line[obfStart] == 'd' && line[obfStart + 1] == 'o')) {
+						out.append('_');
+					}
+					out.append(' ').append(line, space + 1, arrow - space - 1);
+					outFields.add(out.toString());
+				}
 			}
-			line = line.trim();
+		}
 
-			if(line.endsWith(":")) {
-				currentClass = null;
+		Collections.sort(outFields);
+		try(BufferedWriter writer = Files.newBufferedWriter(fields)) {
+			for(String field : outFields) {
+				writer.write(field);
+				writer.newLine();
+			}
+		}
+	}
 
-				String[] parts = line.split(" -> ");
-				//String orig = parts[0].replace('.', '/');
-				String obf = parts[1].substring(0, parts[1].length() - 1).replace('.', '/');
+	private static final char[] ARROW = " -> ".toCharArray();
 
-				String buk = deobfClass(obf, obf2Buk);
-				if(buk == null) {
-					continue;
+	private static int indexOf(char[] chars, int from, int to, char c) {
+		for(int i = from; i < to; i++) {
+			if(chars[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(char[] chars, int from, int to, char[] sequence) {
+		outer:
+		for(int i = from; i <= to - sequence.length; i++) {
+			for(int j = 0; j < sequence.length; j++) {
+				if(chars[i + j] != sequence[j]) {
+					continue outer;
 				}
+			}
+			return i;
+		}
+		return -1;
+	}
 
-				currentClass = buk;
-			} else if(currentClass != null) {
-				Matcher matcher = MEMBER_PATTERN.matcher(line);
-				matcher.find();
+	/**
+	 * Reads a file a buffer at a time, exposing each line as a range of the buffer instead of a new string
+	 */
+	static class LineScanner implements AutoCloseable {
+		private final Reader reader;
+		char[] buffer = new char[64 * 1024];
+		int start, end;
+		private int next, limit;
+		private boolean eof;
+
+		LineScanner(Reader reader) {
+			this.reader = reader;
+		}
 
-				String obf = matcher.group(3);
-				String nameDesc = matcher.group(2);
-				if(!nameDesc.contains("(")) {
-					if(nameDesc.contains("$")) {
-						continue;
-					}
-					if(obf.equals("if") || obf.equals("do")) {
-						obf += "_";
+		/**
+		 * @return false once every line was read, otherwise the line is {@code buffer[start, end)}
+		 */
+		boolean next() throws IOException {
+			while(true) {
+				int newline = indexOf(this.buffer, this.next, this.limit, '\n');
+				if(newline != -1 || this.eof && this.next < this.limit) {
+					this.start = this.next;
+					this.end = newline == -1 ? this.limit : newline;
+					this.next = newline == -1 ? this.limit : newline + 1;
+					if(this.end > this.start && this.buffer[this.end - 1] == '\r') {
+						this.end--;
 					}
+					return true;
+				} else if(this.eof) {
+					return false;
+				}
 
-					outFields.add(currentClass + " " + obf + " " + nameDesc);
+				// move the partial line to the front, and grow if a single line doesn't fit
+				int remaining = this.limit - this.next;
+				if(remaining == this.buffer.length) {
+					this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+				} else {
+					System.arraycopy(this.buffer, this.next, this.buffer, 0, remaining);
+				}
+				this.next = 0;
+				this.limit = remaining;
+				int read = this.reader.read(this.buffer, this.limit, this.buffer.length - this.limit);
+				if(read == -1) {
+					this.eof = true;
+				} else {
+					this.limit += read;
 				}
 			}
 		}
 
-		Collections.sort(outFields);
-		Files.write(fields, outFields);
+		@Override
+		public void close() throws IOException {
+			this.reader.close();
+		}
 	}
 
 	public static String deobfClass(String obf, Map<String, String> classMaps) {
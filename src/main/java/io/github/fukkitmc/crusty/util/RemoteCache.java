@@ -0,0 +1,155 @@
+package io.github.fukkitmc.crusty.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import io.github.fukkitmc.crusty.CrustyExtension;
+import org.gradle.api.logging.Logger;
+
+/**
+ * Shares stage outputs between machines over plain HTTP, like gradle's http build cache: an entry is fetched with
+ * {@code GET <url>/<key>} and uploaded with {@code PUT <url>/<key>}. Directories are transferred as zips. The cache is
+ * only ever an optimization, failing to talk to it is logged and the stage is computed locally.
+ */
+public class RemoteCache {
+	private final URI url;
+	private final boolean push;
+	private final Logger logger;
+	private final String authorization;
+
+	/**
+	 * @param url the base url, credentials may be given as its user info
+	 * @param push whether entries computed locally are uploaded
+	 */
+	public RemoteCache(String url, boolean push, Logger logger) {
+		URI uri = URI.create(url.endsWith("/") ? url : url + "/");
+		String userInfo = uri.getRawUserInfo();
+		if(userInfo != null) {
+			this.authorization = "Basic " + Base64.getEncoder().encodeToString(uri.getUserInfo().getBytes(StandardCharsets.UTF_8));
+			uri = URI.create(uri.toString().replace(userInfo + "@", ""));
+		} else {
+			this.authorization = null;
+		}
+		this.url = uri;
+		this.push = push;
+		this.logger = logger;
+	}
+
+	/**
+	 * @param directory whether the output is a directory, packed as a zip in the cache
+	 * @return true if the entry was in the cache and is now at {@code output}
+	 */
+	public boolean load(String key, Path output, boolean directory) {
+		Path temp = null;
+		try {
+			HttpResponse<InputStream> response = DownloadUtil.CLIENT.send(this.request(key).GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+			try(InputStream input = response.body()) {
+				if(response.statusCode() == 404) {
+					return false;
+				} else if(response.statusCode() != 200) {
+					this.logger.warn("Remote cache returned HTTP {} for {}", response.statusCode(), key);
+					return false;
+				}
+
+				Files.createDirectories(output.getParent());
+				temp = Files.createTempFile(output.getParent(), output.getFileName().toString(), ".remote");
+				Files.copy(input, temp, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			CrustyExtension.delete(output);
+			if(directory) {
+				Files.createDirectories(output);
+				ZipUtils.unzip(temp, output, name -> true);
+			} else {
+				Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			this.logger.lifecycle("Loaded {} from the remote cache", output.getFileName());
+			return true;
+		} catch(IOException | RuntimeException e) {
+			this.logger.warn("Failed to load {} from the remote cache: {}", key, e.toString());
+			try {
+				CrustyExtension.delete(output);
+			} catch(IOException ignored) {
+			}
+			return false;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			deleteQuietly(temp);
+		}
+	}
+
+	public void store(String key, Path output, boolean directory) {
+		if(!this.push) {
+			return;
+		}
+
+		Path temp = null;
+		try {
+			Path body = output;
+			if(directory) {
+				body = temp = Files.createTempFile(output.getParent(), output.getFileName().toString(), ".zip");
+				pack(output, temp);
+			}
+
+			HttpResponse<Void> response = DownloadUtil.CLIENT.send(this.request(key).PUT(HttpRequest.BodyPublishers.ofFile(body)).build(), HttpResponse.BodyHandlers.discarding());
+			if(response.statusCode() < 200 || response.statusCode() > 299) {
+				this.logger.warn("Remote cache returned HTTP {} when storing {}", response.statusCode(), key);
+			}
+		} catch(IOException | RuntimeException e) {
+			this.logger.warn("Failed to store {} in the remote cache: {}", key, e.toString());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			deleteQuietly(temp);
+		}
+	}
+
+	private HttpRequest.Builder request(String key) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(this.url.resolve(key)).timeout(Duration.ofMinutes(10));
+		if(this.authorization != null) {
+			builder.header("Authorization", this.authorization);
+		}
+		return builder;
+	}
+
+	private static void pack(Path directory, Path zip) throws IOException {
+		List<Path> files;
+		try(Stream<Path> stream = Files.walk(directory)) {
+			files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+
+		try(OutputStream output = Files.newOutputStream(zip); ZipOutputStream zos = new ZipOutputStream(output)) {
+			for(Path file : files) {
+				zos.putNextEntry(new ZipEntry(directory.relativize(file).toString().replace('\\', '/')));
+				Files.copy(file, zos);
+				zos.closeEntry();
+			}
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		if(path != null) {
+			try {
+				Files.deleteIfExists(path);
+			} catch(IOException ignored) {
+			}
+		}
+	}
+}
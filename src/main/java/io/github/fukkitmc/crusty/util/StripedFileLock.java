@@ -0,0 +1,124 @@
+package io.github.fukkitmc.crusty.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.gradle.api.logging.Logger;
+
+/**
+ * Cross process locks over a fixed number of lock files, artifacts are assigned a stripe by their key. A lock is a
+ * {@link FileLock} so the OS releases it when the holding process dies, and an in-jvm {@link ReentrantLock} since file
+ * locks are held per process, not per thread.
+ * <p>
+ * A thread holding a stripe may take it again, but no other one. Two threads taking a pair of stripes in opposite
+ * orders would deadlock, on the {@link ReentrantLock}s within a jvm and on the file locks across processes, and
+ * unrelated keys share stripes, so there's no order to keep them in. Whatever is needed by the work done under a lock,
+ * and takes a lock of its own, has to be produced before, and taking a second stripe fails.
+ * <p>
+ * The pid of the holder is kept in a file next to the lock file, as the lock file can't be read while locked on
+ * Windows.
+ */
+public class StripedFileLock {
+	private static final Map<Path, StripedFileLock> LOCKS = new ConcurrentHashMap<>();
+	private final Path directory;
+	private final ReentrantLock[] stripes;
+
+	private StripedFileLock(Path directory, int stripes) {
+		this.directory = directory;
+		this.stripes = new ReentrantLock[stripes];
+		for(int i = 0; i < stripes; i++) {
+			this.stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * @return the locks of the directory, shared by everything in this jvm that uses it
+	 */
+	public static StripedFileLock of(Path directory) {
+		return LOCKS.computeIfAbsent(directory.toAbsolutePath().normalize(), path -> new StripedFileLock(path, 32));
+	}
+
+	/**
+	 * @throws IllegalStateException if the thread holds another stripe
+	 */
+	public Handle lock(String key, Logger logger) throws IOException {
+		int stripe = Math.floorMod(key.hashCode(), this.stripes.length);
+		for(int i = 0; i < this.stripes.length; i++) {
+			if(i != stripe && this.stripes[i].isHeldByCurrentThread()) {
+				throw new IllegalStateException("Locking " + key + " while holding the lock of another cache entry");
+			}
+		}
+
+		ReentrantLock lock = this.stripes[stripe];
+		lock.lock();
+		if(lock.getHoldCount() > 1) {
+			return new Handle(lock, null);
+		}
+
+		try {
+			Files.createDirectories(this.directory);
+			FileChannel channel = FileChannel.open(this.directory.resolve(stripe + ".lock"),
+			                                       StandardOpenOption.CREATE,
+			                                       StandardOpenOption.READ,
+			                                       StandardOpenOption.WRITE);
+			try {
+				Path pid = this.directory.resolve(stripe + ".pid");
+				FileLock fileLock = channel.tryLock();
+				if(fileLock == null) {
+					if(logger != null) logger.lifecycle("Waiting for process {} to finish {}", owner(pid), key);
+					fileLock = channel.lock();
+				}
+
+				try {
+					Files.writeString(pid, Long.toString(ProcessHandle.current().pid()));
+				} catch(IOException ignored) {
+					// only used for the message above
+				}
+				return new Handle(lock, fileLock);
+			} catch(IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		} catch(IOException | RuntimeException e) {
+			lock.unlock();
+			throw e;
+		}
+	}
+
+	private static String owner(Path pid) {
+		try {
+			String owner = Files.readString(pid).trim();
+			return owner.isEmpty() ? "unknown" : owner;
+		} catch(IOException e) {
+			return "unknown";
+		}
+	}
+
+	public static class Handle implements AutoCloseable {
+		private final ReentrantLock lock;
+		private final FileLock fileLock;
+
+		Handle(ReentrantLock lock, FileLock fileLock) {
+			this.lock = lock;
+			this.fileLock = fileLock;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if(this.fileLock != null) {
+					this.fileLock.channel().close();
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package io.github.fukkitmc.crusty.util;
+
+import java.util.Arrays;
+
+/**
+ * Interns names and descriptors as dense int ids, so mapping data can be held in int arrays instead of objects which
+ * each reference their own copies of the strings. Lookups can be done straight from a char buffer without creating a
+ * string. Not thread safe.
+ */
+public class SymbolTable {
+	private String[] symbols = new String[1024];
+	private int[] hashes = new int[1024];
+	private int size;
+	/**
+	 * Open addressing table of {@code id + 1}, 0 is an empty slot
+	 */
+	private int[] table = new int[2048];
+
+	public int size() {
+		return this.size;
+	}
+
+	public String get(int id) {
+		return this.symbols[id];
+	}
+
+	/**
+	 * @return the id of the symbol, -1 if it was never interned
+	 */
+	public int find(String symbol) {
+		int hash = symbol.hashCode();
+		for(int slot = slot(hash, this.table.length); ; slot = (slot + 1) & (this.table.length - 1)) {
+			int id = this.table[slot] - 1;
+			if(id == -1) {
+				return -1;
+			} else if(this.hashes[id] == hash && this.symbols[id].equals(symbol)) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * @return the id of {@code chars[offset, offset + length)}, -1 if it was never interned
+	 */
+	public int find(char[] chars, int offset, int length) {
+		int hash = hash(chars, offset, length);
+		for(int slot = slot(hash, this.table.length); ; slot = (slot + 1) & (this.table.length - 1)) {
+			int id = this.table[slot] - 1;
+			if(id == -1) {
+				return -1;
+			} else if(this.hashes[id] == hash && equals(this.symbols[id], chars, offset, length)) {
+				return id;
+			}
+		}
+	}
+
+	public int intern(String symbol) {
+		int id = this.find(symbol);
+		return id == -1 ? this.add(symbol, symbol.hashCode()) : id;
+	}
+
+	public int intern(char[] chars, int offset, int length) {
+		int id = this.find(chars, offset, length);
+		return id == -1 ? this.add(new String(chars, offset, length), hash(chars, offset, length)) : id;
+	}
+
+	private int add(String symbol, int hash) {
+		if(this.size == this.symbols.length) {
+			this.symbols = Arrays.copyOf(this.symbols, this.size * 2);
+			this.hashes = Arrays.copyOf(this.hashes, this.size * 2);
+		}
+
+		int id = this.size++;
+		this.symbols[id] = symbol;
+		this.hashes[id] = hash;
+		if(this.size * 2 > this.table.length) {
+			this.table = new int[this.table.length * 2];
+			for(int i = 0; i < this.size; i++) {
+				this.insert(i);
+			}
+		} else {
+			this.insert(id);
+		}
+		return id;
+	}
+
+	private void insert(int id) {
+		int slot = slot(this.hashes[id], this.table.length);
+		while(this.table[slot] != 0) {
+			slot = (slot + 1) & (this.table.length - 1);
+		}
+		this.table[slot] = id + 1;
+	}
+
+	/**
+	 * Names differing in their last chars have close string hashes, which would cluster in the table if used as they are
+	 */
+	private static int slot(int hash, int length) {
+		int mixed = hash * 0x9E3779B9;
+		return (mixed ^ mixed >>> 16) & (length - 1);
+	}
+
+	/**
+	 * Same as {@link String#hashCode()}
+	 */
+	private static int hash(char[] chars, int offset, int length) {
+		int hash = 0;
+		for(int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + chars[i];
+		}
+		return hash;
+	}
+
+	private static boolean equals(String symbol, char[] chars, int offset, int length) {
+		if(symbol.length() != length) {
+			return false;
+		}
+
+		for(int i = 0; i < length; i++) {
+			if(symbol.charAt(i) != chars[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -1,45 +1,169 @@
 package io.github.fukkitmc.crusty.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipFile;
 
 public class ZipUtils {
+    private static final int UNZIP_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
+    private static final int CENTRAL_HEADER = 0x02014b50, DESCRIPTOR_HEADER = 0x08074b50, END_HEADER = 0x06054b50;
+
+    /**
+     * Extracts the entries which pass the filter, every directory is created once up front and the entries are inflated
+     * and written concurrently
+     */
     public static void unzip(final Path zipFile, final Path decryptTo, Predicate<String> shouldCopy) {
-        try(ZipInputStream zipInputStream = new ZipInputStream(Files.newInputStream(zipFile))) {
-            ZipEntry entry;
-            while((entry = zipInputStream.getNextEntry()) != null) {
-                final Path toPath = decryptTo.resolve(entry.getName());
-                if(!entry.isDirectory() && shouldCopy.test(entry.getName())) {
-                    Files.createDirectories(toPath.getParent());
-                    Files.copy(zipInputStream, toPath);
+        try(ZipFile zip = new ZipFile(zipFile.toFile())) {
+            List<ZipEntry> entries = zip.stream().filter(entry -> !entry.isDirectory() && shouldCopy.test(entry.getName())).collect(Collectors.toList());
+            Path root = decryptTo.toAbsolutePath().normalize();
+            Map<ZipEntry, Path> targets = new HashMap<>();
+            Set<Path> directories = new HashSet<>();
+            for(ZipEntry entry : entries) {
+                Path target = root.resolve(entry.getName()).normalize();
+                if(!target.startsWith(root) || target.equals(root)) {
+                    throw new IOException("Zip entry " + entry.getName() + " of " + zipFile + " is outside of " + decryptTo);
+                }
+                targets.put(entry, target);
+                if(directories.add(target.getParent())) {
+                    Files.createDirectories(target.getParent());
                 }
             }
+
+            ForkJoinPool pool = new ForkJoinPool(Math.min(UNZIP_THREADS, Math.max(1, entries.size())));
+            try {
+                pool.submit(() -> entries.parallelStream().forEach(entry -> {
+                    try(InputStream input = zip.getInputStream(entry)) {
+                        Files.copy(input, targets.get(entry));
+                    } catch(IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })).get();
+            } catch(InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch(ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
         } catch(IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Copies the entries which pass the filter into a new zip without inflating them, the compressed data, crc and sizes
+     * are carried over as they are
+     */
     public static void copyWithout(final Path zipFile, final Path decryptTo, Predicate<String> shouldCopy) {
-        byte[] buf = new byte[4096];
-        try(ZipInputStream input = new ZipInputStream(Files.newInputStream(zipFile)); ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(decryptTo))) {
-            ZipEntry entry;
-            while((entry = input.getNextEntry()) != null) {
-                if(shouldCopy.test(entry.getName())) {
-                    output.putNextEntry(new ZipEntry(entry.getName()));
-                    int read;
-                    while((read = input.read(buf)) != -1) {
-                        output.write(buf, 0, read);
+        try(FileChannel input = FileChannel.open(zipFile, StandardOpenOption.READ);
+            FileChannel output = FileChannel.open(decryptTo, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer end = readEnd(input);
+            int count = end.getShort(10) & 0xFFFF;
+            long directorySize = end.getInt(12) & 0xFFFFFFFFL;
+            long directoryOffset = end.getInt(16) & 0xFFFFFFFFL;
+            if(count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+                throw new IOException("zip64 is not supported: " + zipFile);
+            }
+
+            ByteBuffer directory = read(input, directoryOffset, (int) directorySize);
+            ByteArrayOutputStream copiedDirectory = new ByteArrayOutputStream();
+            int copied = 0;
+            long written = 0;
+            for(int i = 0, record = 0; i < count; i++) {
+                if(directory.getInt(record) != CENTRAL_HEADER) {
+                    throw new IOException("Corrupt central directory in " + zipFile);
+                }
+
+                int flags = directory.getShort(record + 8) & 0xFFFF;
+                long compressedSize = directory.getInt(record + 20) & 0xFFFFFFFFL;
+                int nameLength = directory.getShort(record + 28) & 0xFFFF;
+                int extraLength = directory.getShort(record + 30) & 0xFFFF;
+                int commentLength = directory.getShort(record + 32) & 0xFFFF;
+                long localOffset = directory.getInt(record + 42) & 0xFFFFFFFFL;
+                int recordLength = 46 + nameLength + extraLength + commentLength;
+                String name = new String(directory.array(), record + 46, nameLength, StandardCharsets.UTF_8);
+
+                if(shouldCopy.test(name)) {
+                    ByteBuffer local = read(input, localOffset, 30);
+                    long length = 30 + (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF) + compressedSize;
+                    if((flags & 8) != 0) { // data descriptor, with an optional signature
+                        length += read(input, localOffset + length, 4).getInt(0) == DESCRIPTOR_HEADER ? 16 : 12;
                     }
-                    output.closeEntry();
+
+                    transfer(input, localOffset, length, output);
+                    ByteBuffer central = ByteBuffer.wrap(directory.array(), record, recordLength).slice().order(ByteOrder.LITTLE_ENDIAN);
+                    central.putInt(42, (int) written);
+                    copiedDirectory.write(directory.array(), record, recordLength);
+                    written += length;
+                    copied++;
                 }
+                record += recordLength;
+            }
+
+            ByteBuffer tail = ByteBuffer.allocate(copiedDirectory.size() + 22).order(ByteOrder.LITTLE_ENDIAN);
+            tail.put(copiedDirectory.toByteArray());
+            tail.putInt(END_HEADER).putShort((short) 0).putShort((short) 0);
+            tail.putShort((short) copied).putShort((short) copied);
+            tail.putInt(copiedDirectory.size()).putInt((int) written).putShort((short) 0);
+            tail.flip();
+            while(tail.hasRemaining()) {
+                output.write(tail);
             }
         } catch(IOException e) {
             throw new RuntimeException(e);
         }
     }
-}
\ No newline at end of file
+
+    private static ByteBuffer readEnd(FileChannel input) throws IOException {
+        long size = input.size();
+        int window = (int) Math.min(size, 22 + 0xFFFF); // the record plus the longest possible comment
+        ByteBuffer buffer = read(input, size - window, window);
+        for(int i = window - 22; i >= 0; i--) {
+            if(buffer.getInt(i) == END_HEADER) {
+                return ByteBuffer.wrap(buffer.array(), i, 22).slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        throw new IOException("Not a zip file");
+    }
+
+    private static ByteBuffer read(FileChannel input, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining()) {
+            if(input.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer;
+    }
+
+    private static void transfer(FileChannel input, long position, long length, FileChannel output) throws IOException {
+        while(length > 0) {
+            long transferred = input.transferTo(position, length, output);
+            if(transferred <= 0) {
+                throw new EOFException("Zip entry at " + position + " runs past the end of the file");
+            }
+            position += transferred;
+            length -= transferred;
+        }
+    }
+}
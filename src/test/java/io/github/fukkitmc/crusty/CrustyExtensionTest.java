@@ -0,0 +1,204 @@
+package io.github.fukkitmc.crusty;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The prefetched downloads of a pipeline run, against a local stand-in server
+ */
+class CrustyExtensionTest {
+	private static final byte[] CONTENT = "downloaded\n".getBytes(StandardCharsets.UTF_8);
+	@TempDir
+	Path dir;
+	private HttpServer server;
+	private ExecutorService handlers;
+
+	@BeforeEach
+	void start() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		// the handlers here block, which would hold up every other request on the server's own thread
+		this.handlers = Executors.newCachedThreadPool();
+		this.server.setExecutor(this.handlers);
+		this.server.start();
+	}
+
+	@AfterEach
+	void stop() {
+		this.server.stop(0);
+		this.handlers.shutdownNow();
+	}
+
+	@Test
+	void prefetchesOverlap() throws IOException {
+		// neither download is answered before the other one was asked for
+		CountDownLatch both = new CountDownLatch(2);
+		for(String name : new String[] {"/a", "/b"}) {
+			this.server.createContext(name, exchange -> {
+				both.countDown();
+				respond(exchange, await(both) ? 200 : 500, CONTENT);
+			});
+		}
+
+		CrustyExtension extension = this.extension(CrustyService.detached());
+		Path a = this.dir.resolve("out").resolve("a"), b = this.dir.resolve("out").resolve("b");
+		CompletableFuture<Void> first = extension.prefetch(a, this.url("/a"), "a", false);
+		CompletableFuture<Void> second = extension.prefetch(b, this.url("/b"), "b", false);
+		CrustyExtension.await(first);
+		CrustyExtension.await(second);
+		assertArrayEquals(CONTENT, Files.readAllBytes(a));
+		assertArrayEquals(CONTENT, Files.readAllBytes(b));
+	}
+
+	@Test
+	void sharedFailure() throws Exception {
+		AtomicInteger requests = new AtomicInteger();
+		CountDownLatch requested = new CountDownLatch(1), fail = new CountDownLatch(1);
+		this.server.createContext("/a", exchange -> {
+			requests.incrementAndGet();
+			requested.countDown();
+			await(fail);
+			respond(exchange, 500, CONTENT);
+		});
+
+		// two projects of a build, one prefetching the download and one needing it right away
+		CrustyService service = CrustyService.detached();
+		CrustyExtension first = this.extension(service), second = this.extension(service);
+		Path to = this.dir.resolve("out").resolve("a");
+		String url = this.url("/a");
+		CompletableFuture<Void> prefetched = first.prefetch(to, url, "a", false);
+		assertTrue(requested.await(10, TimeUnit.SECONDS));
+
+		RuntimeException[] waited = new RuntimeException[1];
+		Thread waiting = new Thread(() -> {
+			try {
+				second.produce(to, () -> second.download(to, url, false));
+			} catch(IOException | RuntimeException e) {
+				waited[0] = e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+			}
+		});
+		waiting.start();
+		awaitWaiting(waiting);
+		fail.countDown();
+		waiting.join(10_000);
+
+		RuntimeException failure = assertThrows(RuntimeException.class, () -> CrustyExtension.await(prefetched));
+		assertEquals(IOException.class, failure.getCause().getClass());
+		assertSame(failure, waited[0]);
+		assertEquals(1, requests.get());
+		assertFalse(Files.exists(to));
+	}
+
+	@Test
+	void waitsForDownloadsOutsideOfProduce() throws Exception {
+		Path zip = this.buildData(Map.of("minecraftVersion", "1.0",
+		                                 "mappingsUrl", this.url("/mojmap"),
+		                                 "classMappings", "bukkit-cl.csrg",
+		                                 "memberMappings", "bukkit-members.csrg",
+		                                 "accessTransforms", "bukkit.at"));
+		CrustyExtension extension = this.extension(CrustyService.detached());
+		Path fields = extension.cache.resolve("craftbukkit").resolve(extension.getBuildDataVersion(zip)).resolve("fields.csrg");
+
+		Path[] result = new Path[1];
+		RuntimeException[] failure = new RuntimeException[1];
+		Thread pipeline = new Thread(() -> {
+			try {
+				result[0] = extension.getCrusty(zip, CrustyExtension.Resource.FIELD_MAPPINGS);
+			} catch(RuntimeException e) {
+				failure[0] = e;
+			}
+		});
+		this.server.createContext("/mojmap", exchange -> {
+			// the pipeline waits for this download now, and must not have started producing the stage which uses it, as
+			// it would be holding that stage's lock stripe, which the download may need as well
+			awaitWaiting(pipeline);
+			boolean producing = Files.exists(fields.resolveSibling("fields.csrg.marker"));
+			respond(exchange, producing ? 500 : 200, "net.minecraft.server.Foo -> a:\n    int bar -> b\n".getBytes(StandardCharsets.UTF_8));
+		});
+
+		pipeline.start();
+		pipeline.join(30_000);
+		if(failure[0] != null) {
+			throw failure[0];
+		}
+		assertEquals(fields, result[0]);
+		assertEquals("net/minecraft/server/Foo b bar\n", Files.readString(fields));
+	}
+
+	private CrustyExtension extension(CrustyService service) {
+		return new CrustyExtension(null, this.dir.resolve("cache"), service);
+	}
+
+	private String url(String path) {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + path;
+	}
+
+	private Path buildData(Map<String, String> info) throws IOException {
+		Path zip = this.dir.resolve("builddata.zip");
+		try(ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(zip))) {
+			output.putNextEntry(new ZipEntry("info.json"));
+			output.write(CrustyExtension.GSON.toJson(info).getBytes(StandardCharsets.UTF_8));
+			Map<String, String> mappings = Map.of("bukkit-cl.csrg", "a net/minecraft/server/Foo\n",
+			                                      "bukkit-members.csrg", "",
+			                                      "bukkit.at", "",
+			                                      "bukkit-1.0.exclude", "");
+			for(Map.Entry<String, String> entry : mappings.entrySet()) {
+				output.putNextEntry(new ZipEntry("mappings/" + entry.getKey()));
+				output.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return zip;
+	}
+
+	/**
+	 * Waits until the thread is parked, which the threads here only are while waiting for another one
+	 */
+	private static void awaitWaiting(Thread thread) {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while(thread.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+			Thread.onSpinWait();
+		}
+	}
+
+	private static boolean await(CountDownLatch latch) {
+		try {
+			return latch.await(10, TimeUnit.SECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(code, body.length);
+		try(OutputStream output = exchange.getResponseBody()) {
+			output.write(body);
+		}
+	}
+}
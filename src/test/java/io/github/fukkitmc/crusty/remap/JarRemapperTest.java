@@ -0,0 +1,223 @@
+package io.github.fukkitmc.crusty.remap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InnerClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Remaps a small obfuscated jar through class, member and package/field stages laid out like the BuildData ones
+ */
+class JarRemapperTest {
+	private static final String PKG = "net/minecraft/server/", FINAL = "net/minecraft/server/v1/";
+	@TempDir
+	Path dir;
+
+	@Test
+	void remap() throws IOException {
+		Path input = this.dir.resolve("server.jar"), output = this.dir.resolve("final-mapped.jar");
+		Map<String, byte[]> classes = new LinkedHashMap<>();
+		classes.put("a", base());
+		classes.put("a$a", inner());
+		classes.put("b", child());
+		classes.put("c", task());
+		try(ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(input))) {
+			for(Map.Entry<String, byte[]> entry : classes.entrySet()) {
+				zos.putNextEntry(new ZipEntry(entry.getKey() + ".class"));
+				zos.write(entry.getValue());
+			}
+		}
+
+		List<MappingSet> stages = List.of(
+				this.mappings("classes.csrg", "a " + PKG + "Base", "a$a " + PKG + "Base$Inner", "b " + PKG + "Child", "c " + PKG + "Task"),
+				this.mappings("members.csrg",
+				              PKG + "Base c ()V tick",
+				              PKG + "Task e ()V run",
+				              PKG + "Child f ()Ljava/lang/String; name"),
+				this.mappings("fields.csrg", PKG + " " + FINAL, PKG + "Base b count", PKG + "Base$Inner a owner"));
+		Path at = Files.write(this.dir.resolve("bukkit.at"), List.of(
+				"# against the names before the last stage, which renames the fields",
+				"public " + PKG + "Base tick()V",
+				"public-f " + PKG + "Base b",
+				"public " + PKG + "Base$Inner"));
+		new JarRemapper(stages, AccessTransformer.read(at), true, 2).remap(input, output);
+
+		Map<String, ClassNode> remapped = read(output);
+		assertEquals(List.of(FINAL + "Base", FINAL + "Base$Inner", FINAL + "Child", FINAL + "Task"), new ArrayList<>(remapped.keySet()));
+
+		ClassNode base = remapped.get(FINAL + "Base");
+		assertEquals(Opcodes.ACC_PUBLIC, field(base, "count").access);
+		assertEquals(Opcodes.ACC_PUBLIC, method(base, "tick", "()V").access);
+		// inner class names follow the outer class, the access change applies to the attribute as well
+		InnerClassNode attribute = base.innerClasses.get(0);
+		assertEquals(FINAL + "Base$Inner", attribute.name);
+		assertEquals(FINAL + "Base", attribute.outerName);
+		assertEquals("Inner", attribute.innerName);
+		assertEquals(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, attribute.access);
+
+		ClassNode inner = remapped.get(FINAL + "Base$Inner");
+		assertEquals(Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, inner.access);
+		assertEquals("L" + FINAL + "Base;", field(inner, "owner").desc);
+
+		// members inherited from the super class and interface are found through the hierarchy
+		ClassNode child = remapped.get(FINAL + "Child");
+		assertEquals(FINAL + "Base", child.superName);
+		assertEquals(List.of(FINAL + "Task"), child.interfaces);
+		MethodNode update = method(child, "d", "()V");
+		assertEquals(List.of(FINAL + "Child.tick()V", FINAL + "Child.count:I"), instructions(update));
+		assertTrue(update.localVariables == null || update.localVariables.isEmpty(), "lvt stripped");
+		method(child, "run", "()V");
+		// the synthetic bridge follows the method it delegates to
+		method(child, "name", "()Ljava/lang/String;");
+		assertEquals(List.of(FINAL + "Child.name()Ljava/lang/String;"), instructions(method(child, "name", "()Ljava/lang/Object;")));
+
+		method(remapped.get(FINAL + "Task"), "run", "()V");
+	}
+
+	private MappingSet mappings(String name, String... lines) throws IOException {
+		return MappingSet.read(Files.write(this.dir.resolve(name), List.of(lines)));
+	}
+
+	private static Map<String, ClassNode> read(Path jar) throws IOException {
+		Map<String, ClassNode> classes = new LinkedHashMap<>();
+		try(ZipFile zip = new ZipFile(jar.toFile())) {
+			for(ZipEntry entry : Collections.list(zip.entries())) {
+				try(InputStream stream = zip.getInputStream(entry)) {
+					ClassNode node = new ClassNode();
+					new ClassReader(stream.readAllBytes()).accept(node, 0);
+					assertEquals(node.name + ".class", entry.getName());
+					classes.put(node.name, node);
+				}
+			}
+		}
+		return classes;
+	}
+
+	private static FieldNode field(ClassNode owner, String name) {
+		return owner.fields.stream().filter(field -> field.name.equals(name)).findFirst().orElseThrow(() -> new AssertionError("no field " + name + " in " + owner.name));
+	}
+
+	private static MethodNode method(ClassNode owner, String name, String desc) {
+		return owner.methods.stream()
+		                    .filter(method -> method.name.equals(name) && method.desc.equals(desc))
+		                    .findFirst()
+		                    .orElseThrow(() -> new AssertionError("no method " + name + desc + " in " + owner.name));
+	}
+
+	/**
+	 * @return the member references of the method
+	 */
+	private static List<String> instructions(MethodNode method) {
+		List<String> references = new ArrayList<>();
+		for(AbstractInsnNode insn : method.instructions) {
+			if(insn instanceof MethodInsnNode call) {
+				references.add(call.owner + "." + call.name + call.desc);
+			} else if(insn instanceof FieldInsnNode field) {
+				references.add(field.owner + "." + field.name + ":" + field.desc);
+			}
+		}
+		return references;
+	}
+
+	private static byte[] base() {
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "a", null, "java/lang/Object", null);
+		writer.visitInnerClass("a$a", "a", "a", Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC);
+		writer.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL, "b", "I", null, null).visitEnd();
+		empty(writer, Opcodes.ACC_PROTECTED, "c");
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] inner() {
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(Opcodes.V1_8, Opcodes.ACC_SUPER, "a$a", null, "java/lang/Object", null);
+		writer.visitInnerClass("a$a", "a", "a", Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC);
+		writer.visitField(0, "a", "La;", null, null).visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] child() {
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "b", null, "a", new String[] {"c"});
+
+		// uses the members of a through b
+		MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "d", "()V", null, null);
+		method.visitCode();
+		Label start = new Label(), end = new Label();
+		method.visitLabel(start);
+		method.visitVarInsn(Opcodes.ALOAD, 0);
+		method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "b", "c", "()V", false);
+		method.visitVarInsn(Opcodes.ALOAD, 0);
+		method.visitFieldInsn(Opcodes.GETFIELD, "b", "b", "I");
+		method.visitInsn(Opcodes.POP);
+		method.visitInsn(Opcodes.RETURN);
+		method.visitLabel(end);
+		method.visitLocalVariable("this", "Lb;", null, start, end, 0);
+		method.visitMaxs(0, 0);
+		method.visitEnd();
+
+		empty(writer, Opcodes.ACC_PUBLIC, "e");
+
+		method = writer.visitMethod(Opcodes.ACC_PUBLIC, "f", "()Ljava/lang/String;", null, null);
+		method.visitCode();
+		method.visitInsn(Opcodes.ACONST_NULL);
+		method.visitInsn(Opcodes.ARETURN);
+		method.visitMaxs(0, 0);
+		method.visitEnd();
+
+		method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_BRIDGE | Opcodes.ACC_SYNTHETIC, "f", "()Ljava/lang/Object;", null, null);
+		method.visitCode();
+		method.visitVarInsn(Opcodes.ALOAD, 0);
+		method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "b", "f", "()Ljava/lang/String;", false);
+		method.visitInsn(Opcodes.ARETURN);
+		method.visitMaxs(0, 0);
+		method.visitEnd();
+
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] task() {
+		ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT, "c", null, "java/lang/Object", null);
+		writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "e", "()V", null, null).visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static void empty(ClassWriter writer, int access, String name) {
+		MethodVisitor method = writer.visitMethod(access, name, "()V", null, null);
+		method.visitCode();
+		method.visitInsn(Opcodes.RETURN);
+		method.visitMaxs(0, 0);
+		method.visitEnd();
+	}
+}
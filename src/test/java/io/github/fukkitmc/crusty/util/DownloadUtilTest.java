@@ -0,0 +1,300 @@
+package io.github.fukkitmc.crusty.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Content encodings of {@link DownloadUtil#read} and resuming of {@link DownloadUtil#download}, against a local stand-in
+ * server
+ */
+class DownloadUtilTest {
+	private static final byte[] CONTENT = "net/minecraft/server/MinecraftServer -> a:\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+	private static final String SHA1 = Hashing.sha1().hashBytes(CONTENT).toString();
+	@TempDir
+	Path dir;
+	private HttpServer server;
+	private ExecutorService handlers;
+	private final List<Headers> requests = Collections.synchronizedList(new ArrayList<>());
+
+	@BeforeEach
+	void start() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		// segments are requested while the first response is still being read
+		this.handlers = Executors.newCachedThreadPool();
+		this.server.setExecutor(this.handlers);
+		this.server.start();
+	}
+
+	@AfterEach
+	void stop() {
+		this.server.stop(0);
+		this.handlers.shutdownNow();
+	}
+
+	@Test
+	void gzip() throws IOException {
+		assertArrayEquals(CONTENT, this.fetch("gzip", gzip(CONTENT)));
+	}
+
+	@Test
+	void zlibDeflate() throws IOException {
+		assertArrayEquals(CONTENT, this.fetch("deflate", deflate(CONTENT, false)));
+	}
+
+	@Test
+	void rawDeflate() throws IOException {
+		assertArrayEquals(CONTENT, this.fetch("deflate", deflate(CONTENT, true)));
+	}
+
+	@Test
+	void identity() throws IOException {
+		assertArrayEquals(CONTENT, this.fetch(null, CONTENT));
+	}
+
+	@Test
+	void unknownEncodingRejected() {
+		IOException e = assertThrows(IOException.class, () -> this.fetch("br", CONTENT));
+		assertEquals("Unsupported content encoding br", e.getMessage());
+	}
+
+	@Test
+	void truncatedGzipRejected() throws IOException {
+		byte[] gzip = gzip(CONTENT);
+		assertThrows(IOException.class, () -> this.fetch("gzip", Arrays.copyOf(gzip, gzip.length / 2)));
+	}
+
+	@Test
+	void truncatedBodyRejected() throws Exception {
+		// HttpServer keeps the connection open when a handler writes less than it announced, so this one is served by hand
+		try(ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			Thread thread = new Thread(() -> {
+				try(Socket client = socket.accept()) {
+					InputStream input = client.getInputStream();
+					for(int last = 0, c; (c = input.read()) != -1 && !(last == '\n' && c == '\r'); ) {
+						last = c; // skip the request headers
+					}
+					OutputStream output = client.getOutputStream();
+					output.write(("HTTP/1.1 200 OK\r\nContent-Length: " + CONTENT.length * 2 + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+					output.write(CONTENT);
+				} catch(IOException ignored) {
+				}
+			});
+			thread.start();
+
+			URL url = new URL("http://127.0.0.1:" + socket.getLocalPort() + "/file");
+			assertThrows(IOException.class, () -> read(url));
+			thread.join();
+		}
+	}
+
+	@Test
+	void shortBodyDetected() {
+		InputStream stream = new DownloadUtil.SizeCheckedInputStream(new ByteArrayInputStream(CONTENT), CONTENT.length + 1);
+		assertThrows(IOException.class, stream::readAllBytes);
+	}
+
+	@Test
+	void resumed() throws IOException {
+		URL url = this.serve(CONTENT, "\"v1\"", true);
+		Path to = this.partial(Arrays.copyOf(CONTENT, 1000), "\"v1\"");
+		DownloadUtil.download(url, to, SHA1, null, false, false, 1);
+
+		assertArrayEquals(CONTENT, Files.readAllBytes(to));
+		assertEquals(1, this.requests.size());
+		assertEquals("bytes=1000-", this.requests.get(0).getFirst("Range"));
+		assertEquals("\"v1\"", this.requests.get(0).getFirst("If-Range"));
+		assertFalse(Files.exists(this.dir.resolve("file.part")));
+		assertFalse(Files.exists(this.dir.resolve("file.part.validator")));
+	}
+
+	@Test
+	void resumeAnsweredWithWholeFile() throws IOException {
+		// a server without range support answers with the whole file, which replaces what was there
+		URL url = this.serve(CONTENT, "\"v1\"", false);
+		Path to = this.partial(new byte[1000], "\"v1\"");
+		DownloadUtil.download(url, to, SHA1, null, false, false, 1);
+
+		assertArrayEquals(CONTENT, Files.readAllBytes(to));
+		assertEquals("bytes=1000-", this.requests.get(0).getFirst("Range"));
+		assertEquals("\"v1\"", Files.readString(this.dir.resolve("file.etag")));
+	}
+
+	@Test
+	void resumeOfChangedFile() throws IOException {
+		URL url = this.serve(CONTENT, "\"v2\"", true);
+		Path to = this.partial(new byte[1000], "\"v1\"");
+		DownloadUtil.download(url, to, SHA1, null, false, false, 1);
+
+		assertArrayEquals(CONTENT, Files.readAllBytes(to));
+		assertEquals(1, this.requests.size());
+		assertEquals("\"v1\"", this.requests.get(0).getFirst("If-Range"));
+		assertEquals("\"v2\"", Files.readString(this.dir.resolve("file.etag")));
+	}
+
+	@Test
+	void resumedChecksumMismatch() throws IOException {
+		// the part is resumed, but doesn't hold what the server's copy starts with
+		URL url = this.serve(CONTENT, "\"v1\"", true);
+		Path to = this.partial(new byte[1000], "\"v1\"");
+		IOException e = assertThrows(IOException.class, () -> DownloadUtil.download(url, to, SHA1, null, false, false, 1));
+		assertTrue(e.getMessage().startsWith("Checksum mismatch"), e.getMessage());
+		assertFalse(Files.exists(to));
+		assertFalse(Files.exists(this.dir.resolve("file.part")));
+		assertFalse(Files.exists(this.dir.resolve("file.part.validator")));
+
+		// so the next attempt starts over
+		DownloadUtil.download(url, to, SHA1, null, false, false, 1);
+		assertArrayEquals(CONTENT, Files.readAllBytes(to));
+		assertNull(this.requests.get(1).getFirst("Range"));
+	}
+
+	@Test
+	void unevenSegments() throws IOException {
+		byte[] content = large(3 * 1024 * 1024 + 12345);
+		URL url = this.serve(content, "\"v1\"", true);
+		Path to = this.dir.resolve("file");
+		DownloadUtil.download(url, to, Hashing.sha1().hashBytes(content).toString(), null, false, false, 3);
+
+		assertArrayEquals(content, Files.readAllBytes(to));
+		int size = (content.length + 2) / 3;
+		List<String> ranges = new ArrayList<>();
+		this.requests.forEach(request -> ranges.add(request.getFirst("Range")));
+		Collections.sort(ranges, Comparator.nullsFirst(Comparator.naturalOrder()));
+		assertEquals(Arrays.asList(null, "bytes=" + size + "-" + (2 * size - 1), "bytes=" + 2 * size + "-" + (content.length - 1)), ranges);
+		assertFalse(Files.exists(this.dir.resolve("file.part")));
+	}
+
+	@Test
+	void segmentsIgnored() throws IOException {
+		// claims to support ranges, but answers them with the whole file
+		byte[] content = large(2 * 1024 * 1024 + 1);
+		URL url = this.serve(content, "\"v1\"", null);
+		Path to = this.dir.resolve("file");
+		DownloadUtil.download(url, to, Hashing.sha1().hashBytes(content).toString(), null, false, false, 2);
+
+		assertArrayEquals(content, Files.readAllBytes(to));
+		assertFalse(Files.exists(this.dir.resolve("file.part")));
+	}
+
+	private byte[] fetch(String encoding, byte[] body) throws IOException {
+		this.server.createContext("/file", exchange -> {
+			if(encoding != null) {
+				exchange.getResponseHeaders().add("Content-Encoding", encoding);
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try(OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		return read(new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/file"));
+	}
+
+	/**
+	 * Serves the content at {@code /file}, honoring ranges whose {@code If-Range} matches the etag if {@code ranges} is
+	 * set, and claiming to support ranges if {@code ranges} is null
+	 */
+	private URL serve(byte[] content, String etag, Boolean ranges) throws IOException {
+		this.server.createContext("/file", exchange -> {
+			Headers request = exchange.getRequestHeaders();
+			this.requests.add(request);
+			String range = request.getFirst("Range"), ifRange = request.getFirst("If-Range");
+			exchange.getResponseHeaders().add("ETag", etag);
+			if(ranges == null || ranges) {
+				exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+			}
+
+			int from = 0, to = content.length - 1;
+			boolean partial = ranges != null && ranges && range != null && (ifRange == null || ifRange.equals(etag));
+			if(partial) {
+				String[] bounds = range.substring("bytes=".length()).split("-", -1);
+				from = Integer.parseInt(bounds[0]);
+				if(!bounds[1].isEmpty()) {
+					to = Integer.parseInt(bounds[1]);
+				}
+				exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+			}
+			exchange.sendResponseHeaders(partial ? 206 : 200, to + 1 - from);
+			try(OutputStream output = exchange.getResponseBody()) {
+				output.write(content, from, to + 1 - from);
+			}
+		});
+		return new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/file");
+	}
+
+	/**
+	 * @return where a download interrupted after {@code part} was written would go
+	 */
+	private Path partial(byte[] part, String validator) throws IOException {
+		Files.write(this.dir.resolve("file.part"), part);
+		Files.writeString(this.dir.resolve("file.part.validator"), validator);
+		return this.dir.resolve("file");
+	}
+
+	private static byte[] read(URL url) throws IOException {
+		DownloadUtil.Result result = DownloadUtil.read(url, null, -1, null, false, true);
+		try(InputStream stream = result.stream) {
+			return stream.readAllBytes();
+		} finally {
+			result.clock.close();
+		}
+	}
+
+	private static byte[] large(int length) {
+		byte[] content = new byte[length];
+		new Random(length).nextBytes(content);
+		return content;
+	}
+
+	private static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(OutputStream output = new GZIPOutputStream(bytes)) {
+			output.write(content);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] deflate(byte[] content, boolean raw) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(OutputStream output = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION, raw))) {
+			output.write(content);
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,150 @@
+package io.github.fukkitmc.crusty.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import javax.tools.ToolProvider;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs a small stand-in for the BuildData tools, which like them keeps its options in static fields set from the
+ * arguments of each run. The test jvm needs {@code -Djava.security.manager=allow} for the in-process runs.
+ */
+class ExecuteUtilTest {
+	private static final Logger LOGGER = Logging.getLogger(ExecuteUtilTest.class);
+	private static final String TOOL = String.join("\n",
+			"import java.nio.file.*;",
+			"import java.util.*;",
+			"public class Tool {",
+			"	static String prefix;",
+			"	static boolean upper;",
+			"	static final Map<String, String> CACHE = new HashMap<>();",
+			"	public static void main(String[] args) throws Exception {",
+			"		prefix = \"\";",
+			"		upper = false;",
+			"		List<String> rest = new ArrayList<>();",
+			"		for(int i = 0; i < args.length; i++) {",
+			"			if(args[i].equals(\"--prefix\")) prefix = args[++i];",
+			"			else if(args[i].equals(\"--upper\")) upper = true;",
+			"			else if(args[i].equals(\"--exit\")) System.exit(Integer.parseInt(args[++i]));",
+			"			else rest.add(args[i]);",
+			"		}",
+			"		StringBuilder out = new StringBuilder();",
+			"		for(String line : Files.readAllLines(Paths.get(rest.get(0)))) {",
+			"			String mapped = CACHE.computeIfAbsent(line, l -> l.chars().mapToObj(Integer::toString).reduce(\"\", String::concat));",
+			"			out.append(prefix).append(upper ? line.toUpperCase() : line).append(' ').append(mapped).append('\\n');",
+			"		}",
+			"		Files.writeString(Paths.get(rest.get(1)), out);",
+			"		Files.writeString(Paths.get(rest.get(2)), Integer.toString(System.identityHashCode(Tool.class)));",
+			"	}",
+			"}");
+	@TempDir
+	Path dir;
+
+	@Test
+	void reusedLoaderMatchesFreshRuns() throws IOException {
+		Path jar = this.tool();
+		Path input = this.dir.resolve("input.txt");
+		Files.write(input, List.of("a/B", "c/D$E", "f"));
+		List<List<String>> runs = List.of(List.of("--prefix", "net/minecraft/", "--upper"), List.of(), List.of("--prefix", "x/"));
+
+		String loader = null;
+		for(int i = 0; i < runs.size(); i++) {
+			Path pooled = this.dir.resolve("pooled-" + i), forked = this.dir.resolve("forked-" + i);
+			Path pooledClass = this.dir.resolve("pooled-class-" + i), forkedClass = this.dir.resolve("forked-class-" + i);
+			ExecuteUtil.execute(jar, args(runs.get(i), input, pooled, pooledClass), LOGGER, true);
+			ExecuteUtil.execute(jar, args(runs.get(i), input, forked, forkedClass), LOGGER, false);
+			assertEquals(Files.readString(forked), Files.readString(pooled), "run " + i);
+
+			// the in-process runs went through the same loaded class
+			String current = Files.readString(pooledClass);
+			assertEquals(loader == null ? current : loader, current);
+			loader = current;
+		}
+		assertNull(System.getSecurityManager());
+	}
+
+	@Test
+	void concurrentRunsGetLoadersOfTheirOwn() throws Exception {
+		Path jar = this.tool();
+		Path input = this.dir.resolve("input.txt");
+		Files.write(input, List.of("a/B"));
+
+		Thread[] threads = new Thread[2];
+		IOException[] failures = new IOException[threads.length];
+		for(int i = 0; i < threads.length; i++) {
+			int index = i;
+			threads[i] = new Thread(() -> {
+				try {
+					Path out = this.dir.resolve("out-" + index), cls = this.dir.resolve("class-" + index);
+					ExecuteUtil.execute(jar, args(List.of("--prefix", index + "/"), input, out, cls), LOGGER, true);
+				} catch(IOException e) {
+					failures[index] = e;
+				}
+			});
+		}
+		for(Thread thread : threads) thread.start();
+		for(Thread thread : threads) thread.join();
+		for(int i = 0; i < threads.length; i++) {
+			if(failures[i] != null) throw failures[i];
+			assertEquals(i + "/a/B 974766\n", Files.readString(this.dir.resolve("out-" + i)));
+		}
+	}
+
+	@Test
+	void exitStatus() throws IOException {
+		Path jar = this.tool();
+		Path input = this.dir.resolve("input.txt");
+		Files.write(input, List.of("a/B"));
+		String[] args = args(List.of("--exit", "3"), input, this.dir.resolve("out"), this.dir.resolve("class"));
+		assertThrows(IOException.class, () -> ExecuteUtil.execute(jar, args, LOGGER, true));
+		assertThrows(IOException.class, () -> ExecuteUtil.execute(jar, args, LOGGER, false));
+		assertNull(System.getSecurityManager());
+
+		// and zero is a success
+		ExecuteUtil.execute(jar, args(List.of("--exit", "0"), input, this.dir.resolve("out"), this.dir.resolve("class")), LOGGER, true);
+	}
+
+	private static String[] args(List<String> options, Path input, Path output, Path cls) {
+		String[] args = options.toArray(new String[options.size() + 3]);
+		args[options.size()] = input.toString();
+		args[options.size() + 1] = output.toString();
+		args[options.size() + 2] = cls.toString();
+		return args;
+	}
+
+	/**
+	 * Compiles the tool into a jar of its own, which the test classpath doesn't see
+	 */
+	private Path tool() throws IOException {
+		Path sources = Files.createDirectories(this.dir.resolve("tool"));
+		Path source = sources.resolve("Tool.java");
+		Files.writeString(source, TOOL);
+		assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-d", sources.toString(), source.toString()));
+
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "Tool");
+		Path jar = this.dir.resolve("tool.jar");
+		try(JarOutputStream output = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+			output.putNextEntry(new JarEntry("Tool.class"));
+			output.write(Files.readAllBytes(sources.resolve("Tool.class")));
+			output.closeEntry();
+		}
+		return jar;
+	}
+}
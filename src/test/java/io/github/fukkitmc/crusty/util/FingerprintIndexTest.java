@@ -0,0 +1,120 @@
+package io.github.fukkitmc.crusty.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FingerprintIndexTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	void reload() throws IOException {
+		Path log = this.dir.resolve("fingerprints.bin"), file = this.file("a", "first");
+		byte[] digest = FingerprintIndex.load(log).digest(file);
+		assertArrayEquals(HashUtil.digest(file), digest);
+
+		// same size and time, so only a digest read back from the log can still match the old contents
+		this.rewrite(file, "other");
+		assertArrayEquals(digest, FingerprintIndex.load(log).digest(file));
+	}
+
+	@Test
+	void stale() throws IOException {
+		Path log = this.dir.resolve("fingerprints.bin"), file = this.file("a", "first");
+		byte[] digest = FingerprintIndex.load(log).digest(file);
+
+		Files.writeString(file, "second, and longer");
+		Files.setLastModifiedTime(file, FileTime.from(System.currentTimeMillis() - 60_000, TimeUnit.MILLISECONDS));
+		byte[] changed = FingerprintIndex.load(log).digest(file);
+		assertFalse(Arrays.equals(digest, changed));
+		assertArrayEquals(HashUtil.digest(file), changed);
+	}
+
+	@Test
+	void recent() throws IOException {
+		Path log = this.dir.resolve("fingerprints.bin"), file = this.dir.resolve("a");
+		Files.writeString(file, "just written");
+		byte[] digest = FingerprintIndex.load(log).digest(file);
+
+		// could still change within the timestamp granularity, so it isn't trusted next time
+		Files.writeString(file, "just changed");
+		Files.setLastModifiedTime(file, Files.getLastModifiedTime(file));
+		assertFalse(Arrays.equals(digest, FingerprintIndex.load(log).digest(file)));
+	}
+
+	@Test
+	void truncatedTail() throws IOException {
+		Path log = this.dir.resolve("fingerprints.bin"), a = this.file("a", "first"), b = this.file("b", "second");
+		FingerprintIndex before = FingerprintIndex.load(log);
+		byte[] digestA = before.digest(a);
+		long good = Files.size(log);
+
+		// a build dies midway through a record, and one which loaded the log earlier appends behind it
+		Files.write(log, new byte[] {0, 0, 0, 100, 1, 2, 3}, StandardOpenOption.APPEND);
+		before.digest(b);
+
+		FingerprintIndex after = FingerprintIndex.load(log);
+		assertEquals(good, Files.size(log), "rewritten from the records before the damage");
+		this.rewrite(a, "other");
+		assertArrayEquals(digestA, after.digest(a));
+
+		// records appended from now on are read again
+		Path c = this.file("c", "third");
+		byte[] digestC = after.digest(c);
+		this.rewrite(c, "other");
+		assertArrayEquals(digestC, FingerprintIndex.load(log).digest(c));
+	}
+
+	@Test
+	void corruptRecord() throws IOException {
+		Path log = this.dir.resolve("fingerprints.bin"), a = this.file("a", "first"), b = this.file("b", "second");
+		FingerprintIndex index = FingerprintIndex.load(log);
+		byte[] digestA = index.digest(a);
+		long good = Files.size(log);
+		index.digest(b);
+
+		byte[] bytes = Files.readAllBytes(log);
+		bytes[(int) good + 10] ^= 1;
+		Files.write(log, bytes);
+
+		FingerprintIndex after = FingerprintIndex.load(log);
+		assertEquals(good, Files.size(log));
+		this.rewrite(a, "other");
+		this.rewrite(b, "other!");
+		assertArrayEquals(digestA, after.digest(a));
+		assertArrayEquals(HashUtil.digest(b), after.digest(b));
+	}
+
+	/**
+	 * @return a file old enough to be recorded
+	 */
+	private Path file(String name, String content) throws IOException {
+		Path file = this.dir.resolve(name);
+		Files.writeString(file, content);
+		Files.setLastModifiedTime(file, FileTime.from(System.currentTimeMillis() - 60_000, TimeUnit.MILLISECONDS));
+		return file;
+	}
+
+	/**
+	 * Replaces the contents, keeping the size and modification time
+	 */
+	private void rewrite(Path file, String content) throws IOException {
+		FileTime time = Files.getLastModifiedTime(file);
+		byte[] bytes = Arrays.copyOf(content.getBytes(StandardCharsets.UTF_8), (int) Files.size(file));
+		Files.write(file, bytes);
+		Files.setLastModifiedTime(file, time);
+	}
+}
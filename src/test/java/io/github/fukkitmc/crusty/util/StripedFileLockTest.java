@@ -0,0 +1,64 @@
+package io.github.fukkitmc.crusty.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StripedFileLockTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	void reentrant() throws IOException {
+		StripedFileLock locks = StripedFileLock.of(this.dir);
+		try(StripedFileLock.Handle outer = locks.lock("a", null)) {
+			try(StripedFileLock.Handle inner = locks.lock("a", null)) {
+				assertEquals(Long.toString(ProcessHandle.current().pid()), Files.readString(this.dir.resolve(stripe("a") + ".pid")));
+			}
+		}
+	}
+
+	@Test
+	void otherStripeWhileLocked() throws IOException {
+		StripedFileLock locks = StripedFileLock.of(this.dir);
+		assertTrue(stripe("a") != stripe("b"));
+		try(StripedFileLock.Handle outer = locks.lock("a", null)) {
+			assertThrows(IllegalStateException.class, () -> locks.lock("b", null));
+		}
+		// and nothing is left locked
+		locks.lock("b", null).close();
+	}
+
+	@Test
+	void waitsForOtherThreads() throws Exception {
+		StripedFileLock locks = StripedFileLock.of(this.dir);
+		CompletableFuture<Void> waiting;
+		try(StripedFileLock.Handle held = locks.lock("a", null)) {
+			waiting = CompletableFuture.runAsync(() -> {
+				try {
+					locks.lock("a", null).close();
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			assertThrows(TimeoutException.class, () -> waiting.get(200, TimeUnit.MILLISECONDS));
+			assertFalse(waiting.isDone());
+		}
+		waiting.get(10, TimeUnit.SECONDS);
+	}
+
+	private static int stripe(String key) {
+		return Math.floorMod(key.hashCode(), 32);
+	}
+}
@@ -0,0 +1,142 @@
+package io.github.fukkitmc.crusty.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ZipUtilsTest {
+	private static final byte[] CLASS = "not quite a class file, but it compresses ".repeat(50).getBytes(StandardCharsets.UTF_8);
+	private static final byte[] SOURCE = "package a;\nclass B {}\n".getBytes(StandardCharsets.UTF_8);
+	@TempDir
+	Path dir;
+
+	@Test
+	void copyStored() throws IOException {
+		Path zip = this.dir.resolve("in.jar");
+		try(ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(zip))) {
+			stored(output, "a/B.class", CLASS);
+			stored(output, "a/B.java", SOURCE);
+			stored(output, "META-INF/MANIFEST.MF", SOURCE);
+		}
+		this.assertCopied(zip);
+	}
+
+	@Test
+	void copyDataDescriptor() throws IOException {
+		Path zip = this.dir.resolve("in.jar");
+		try(ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(zip))) {
+			// deflated entries are written with a signed data descriptor
+			deflated(output, "a/B.class", CLASS);
+			stored(output, "a/B.java", SOURCE);
+			deflated(output, "META-INF/MANIFEST.MF", SOURCE);
+		}
+		this.assertCopied(zip);
+	}
+
+	@Test
+	void copyUnsignedDataDescriptor() throws IOException {
+		Path zip = this.dir.resolve("in.jar");
+		try(ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(zip))) {
+			deflated(output, "a/B.class", CLASS);
+		}
+		Files.write(zip, unsignDescriptor(Files.readAllBytes(zip)));
+
+		Path out = this.dir.resolve("out.jar");
+		ZipUtils.copyWithout(zip, out, name -> true);
+		try(ZipFile file = new ZipFile(out.toFile())) {
+			assertEquals(1, file.size());
+			assertArrayEquals(CLASS, read(file, "a/B.class"));
+		}
+	}
+
+	@Test
+	void copyTruncated() throws IOException {
+		Path zip = this.dir.resolve("in.jar");
+		try(ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(zip))) {
+			stored(output, "a/B.class", CLASS);
+		}
+
+		// the central directory claims more data than the file holds
+		byte[] bytes = Files.readAllBytes(zip);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		int central = buffer.getInt(bytes.length - 22 + 16);
+		buffer.putInt(central + 20, 1 << 30);
+		Files.write(zip, bytes);
+
+		RuntimeException e = assertThrows(RuntimeException.class, () -> ZipUtils.copyWithout(zip, this.dir.resolve("out.jar"), name -> true));
+		assertEquals(EOFException.class, e.getCause().getClass());
+	}
+
+	private void assertCopied(Path zip) throws IOException {
+		Path out = this.dir.resolve("out.jar");
+		ZipUtils.copyWithout(zip, out, name -> !name.startsWith("META-INF/"));
+		try(ZipFile file = new ZipFile(out.toFile())) {
+			List<String> names = new ArrayList<>();
+			Collections.list(file.entries()).forEach(entry -> names.add(entry.getName()));
+			assertEquals(List.of("a/B.class", "a/B.java"), names);
+			assertArrayEquals(CLASS, read(file, "a/B.class"));
+			assertArrayEquals(SOURCE, read(file, "a/B.java"));
+			assertNull(file.getEntry("META-INF/MANIFEST.MF"));
+		}
+	}
+
+	private static byte[] read(ZipFile file, String name) throws IOException {
+		try(InputStream input = file.getInputStream(file.getEntry(name))) {
+			return input.readAllBytes();
+		}
+	}
+
+	private static void stored(ZipOutputStream output, String name, byte[] content) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(content.length);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		entry.setCrc(crc.getValue());
+		output.putNextEntry(entry);
+		output.write(content);
+		output.closeEntry();
+	}
+
+	private static void deflated(ZipOutputStream output, String name, byte[] content) throws IOException {
+		output.putNextEntry(new ZipEntry(name));
+		output.write(content);
+		output.closeEntry();
+	}
+
+	/**
+	 * Drops the optional signature of the data descriptor of a zip holding a single entry
+	 */
+	private static byte[] unsignDescriptor(byte[] zip) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+		int end = zip.length - 22, central = buffer.getInt(end + 16);
+		int descriptor = 30 + (buffer.getShort(26) & 0xFFFF) + (buffer.getShort(28) & 0xFFFF) + buffer.getInt(central + 20);
+		assertEquals(0x08074b50, buffer.getInt(descriptor));
+
+		byte[] unsigned = new byte[zip.length - 4];
+		System.arraycopy(zip, 0, unsigned, 0, descriptor);
+		System.arraycopy(zip, descriptor + 4, unsigned, descriptor, zip.length - descriptor - 4);
+		ByteBuffer.wrap(unsigned).order(ByteOrder.LITTLE_ENDIAN).putInt(end - 4 + 16, central - 4);
+		return unsigned;
+	}
+}